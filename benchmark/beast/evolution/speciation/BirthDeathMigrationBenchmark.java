@@ -0,0 +1,324 @@
+package beast.evolution.speciation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import beast.evolution.tree.MultiTypeRootBranch;
+import beast.evolution.tree.MultiTypeTreeFromNewick;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.math.SmallNumber;
+import beast.math.SmallNumberVector;
+import beast.math.p0ge_InitialConditions;
+import beast.util.TreeParser;
+
+/**
+ * JMH benchmarks of the BDMM likelihood calculation, run with the Ant target benchmarkBDMM.
+ *
+ * The full likelihood is measured for the uncoloured and the coloured model. The uncoloured model is also
+ * split into its three phases: the p0 precomputation, the integration of the branches and the combination
+ * of the partials at the birth events.
+ * The allocation rate is reported by the gc profiler (-prof gc, the default of the Ant target).
+ * Single configurations can be selected with the JMH options, e.g. -p demes=2 -p tips=100.
+ *
+ * Created by Jeremie Scire (jscire)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BirthDeathMigrationBenchmark {
+
+	@Param({"2", "10", "50"})
+	public int demes;
+
+	@Param({"100", "1000", "10000"})
+	public int tips;
+
+	@Param({"1", "4"})
+	public int intervals;
+
+	// "psi": serially sampled tips, "rho": all tips sampled at present
+	@Param({"psi", "rho"})
+	public String sampling;
+
+	@Param({"false", "true"})
+	public boolean parallel;
+
+	static final long seed = 127;
+
+	BirthDeathMigrationModelUncoloured uncoloured;
+	BirthDeathMigrationModel coloured;
+
+	Tree tree;
+	Node[] nodes;
+
+	// partials of the children of each internal node, for the node combination phase
+	SmallNumber[][] leftPartials;
+	SmallNumber[][] rightPartials;
+	SmallNumberVector combinedG;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+
+		Random random = new Random(seed);
+
+		String newick = randomNewick(random, false);
+		tree = new TreeParser(newick, false);
+
+		double origin = tree.getRoot().getHeight() + 1.;
+
+		uncoloured = new BirthDeathMigrationModelUncoloured();
+		uncoloured.setInputValue("tree", tree);
+		uncoloured.setInputValue("typeLabel", "type");
+		setModelInputs(uncoloured, origin);
+		uncoloured.initAndValidate();
+		uncoloured.calculateLogP();
+
+		nodes = tree.getNodesAsArray();
+
+		int internalNodes = tree.getInternalNodeCount();
+		leftPartials = new SmallNumber[internalNodes][];
+		rightPartials = new SmallNumber[internalNodes][];
+		for (int k = 0; k < internalNodes; k++) {
+			leftPartials[k] = randomPartials(random);
+			rightPartials[k] = randomPartials(random);
+		}
+		combinedG = new SmallNumberVector(demes);
+
+		MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+		mtTree.initByName(
+				"adjustTipHeights", false,
+				"value", randomNewick(new Random(seed), true),
+				"typeLabel", "type");
+
+		coloured = new BirthDeathMigrationModel();
+		coloured.setInputValue("tree", mtTree);
+		coloured.setInputValue("originBranch", new MultiTypeRootBranch());
+		setModelInputs(coloured, mtTree.getRoot().getHeight() + 1.);
+		coloured.initAndValidate();
+		coloured.calculateLogP();
+	}
+
+	/**
+	 * Full likelihood of the uncoloured model, all partials are recomputed
+	 * @return
+	 */
+	@Benchmark
+	public double uncolouredLikelihood() {
+		uncoloured.ratesSnapshot = null;
+		return uncoloured.calculateLogP();
+	}
+
+	/**
+	 * Full likelihood of the coloured model
+	 * @return
+	 */
+	@Benchmark
+	public double colouredLikelihood() {
+		return coloured.calculateLogP();
+	}
+
+	/**
+	 * p0 at all tips and at the origin
+	 * @return
+	 */
+	@Benchmark
+	public double[][] p0Precompute() {
+		return uncoloured.getAllInitialConditionsForP(tree);
+	}
+
+	/**
+	 * Integration of the ge equations along every branch of the tree, without combining the partials
+	 * @param blackhole
+	 */
+	@Benchmark
+	public void branchIntegration(Blackhole blackhole) {
+
+		double T = uncoloured.T;
+
+		for (Node node : nodes) {
+
+			if (node.isRoot()) continue;
+
+			double[] pConditions = new double[demes];
+			SmallNumber[] gConditions = new SmallNumber[demes];
+			for (int i = 0; i < demes; i++) gConditions[i] = new SmallNumber(1.);
+
+			p0ge_InitialConditions init = new p0ge_InitialConditions(pConditions, gConditions);
+
+			blackhole.consume(uncoloured.getG(T - node.getParent().getHeight(), init, T - node.getHeight(), uncoloured.PG, node));
+		}
+	}
+
+	/**
+	 * Combination of the partials of the two children at every birth event, as in the uncoloured model
+	 * @param blackhole
+	 */
+	@Benchmark
+	public void nodeCombination(Blackhole blackhole) {
+
+		double birthRate = 2.;
+		double birthAmongDemes = 0.5 / demes;
+
+		for (int k = 0; k < leftPartials.length; k++) {
+
+			SmallNumber[] g0 = leftPartials[k];
+			SmallNumber[] g1 = rightPartials[k];
+
+			for (int childstate = 0; childstate < demes; childstate++) {
+
+				combinedG.setProduct(childstate, g0[childstate], g1[childstate], birthRate);
+
+				for (int j = 0; j < demes; j++) {
+					if (childstate != j)
+						combinedG.addProductSum(childstate, g0[childstate], g1[j], g0[j], g1[childstate], 0.5 * birthAmongDemes);
+				}
+			}
+
+			blackhole.consume(combinedG.getMantissa(0));
+		}
+	}
+
+	void setModelInputs(PiecewiseBirthDeathMigrationDistribution bdm, double origin) {
+
+		boolean rho = sampling.equals("rho");
+
+		bdm.setInputValue("origin", Double.toString(origin));
+		bdm.setInputValue("stateNumber", Integer.toString(demes));
+		bdm.setInputValue("frequencies", repeat(1. / demes, demes));
+		bdm.setInputValue("migrationMatrix", repeat(0.1, demes * (demes - 1) * intervals));
+		bdm.setInputValue("R0", repeat(1.5, demes * intervals));
+		bdm.setInputValue("becomeUninfectiousRate", repeat(1., demes * intervals));
+		bdm.setInputValue("samplingProportion", repeat(rho ? 0. : 0.3, demes * intervals));
+		if (rho) {
+			bdm.setInputValue("rho", repeat(0.1, demes));
+			bdm.setInputValue("contemp", true); // tip heights from the newick are only zero up to rounding
+		}
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.setInputValue("parallelize", parallel);
+
+		if (intervals > 1) {
+			StringBuilder intervalTimes = new StringBuilder("0.");
+			for (int k = 1; k < intervals; k++) intervalTimes.append(" ").append(k * origin / intervals);
+			bdm.setInputValue("intervalTimes", intervalTimes.toString());
+		}
+	}
+
+	/**
+	 * Random tree in newick format, built by joining random pairs of lineages going back in time.
+	 * The type of each node is the type of its parent, except for rare type changes.
+	 * In the coloured tree a type change is a single-child node in the middle of the branch,
+	 * in the uncoloured tree only the tip types are used.
+	 * @param random
+	 * @param withTypeChanges
+	 * @return
+	 */
+	String randomNewick(Random random, boolean withTypeChanges) {
+
+		boolean rho = sampling.equals("rho");
+
+		List<Double> heights = new ArrayList<>();
+		List<int[]> children = new ArrayList<>();
+
+		List<Integer> lineages = new ArrayList<>();
+		for (int i = 0; i < tips; i++) {
+			heights.add(rho ? 0. : random.nextDouble() * 2.);
+			children.add(null);
+		}
+
+		// tips enter the list of lineages in increasing height
+		List<Integer> waiting = new ArrayList<>();
+		for (int i = 0; i < tips; i++) waiting.add(i);
+		waiting.sort((a, b) -> Double.compare(heights.get(a), heights.get(b)));
+
+		double time = 0.;
+		while (waiting.size() > 0 || lineages.size() > 1) {
+
+			double next = time + (lineages.size() > 1 ? -Math.log(random.nextDouble()) / lineages.size() : Double.POSITIVE_INFINITY);
+
+			if (waiting.size() > 0 && heights.get(waiting.get(0)) <= next) {
+				time = heights.get(waiting.get(0));
+				lineages.add(waiting.remove(0));
+			} else {
+				time = next;
+				int a = lineages.remove(random.nextInt(lineages.size()));
+				int b = lineages.remove(random.nextInt(lineages.size()));
+				heights.add(time);
+				children.add(new int[]{a, b});
+				lineages.add(heights.size() - 1);
+			}
+		}
+
+		int root = lineages.get(0);
+		int[] types = new int[heights.size()];
+		types[root] = random.nextInt(demes);
+
+		// types are drawn from the root to the tips
+		for (int k = heights.size() - 1; k >= 0; k--) {
+			if (children.get(k) == null) continue;
+			for (int child : children.get(k))
+				types[child] = (random.nextDouble() < 0.1) ? random.nextInt(demes) : types[k];
+		}
+
+		StringBuilder newick = new StringBuilder();
+		appendNewick(newick, root, -1, heights, children, types, withTypeChanges);
+		return newick.append(";").toString();
+	}
+
+	void appendNewick(StringBuilder newick, int k, int parent, List<Double> heights, List<int[]> children, int[] types, boolean withTypeChanges) {
+
+		double branchLength = (parent < 0) ? 0. : heights.get(parent) - heights.get(k);
+		boolean typeChange = withTypeChanges && parent >= 0 && types[parent] != types[k];
+
+		if (typeChange) newick.append("(");
+
+		if (children.get(k) == null) {
+			newick.append("t").append(k + 1);
+		} else {
+			newick.append("(");
+			appendNewick(newick, children.get(k)[0], k, heights, children, types, withTypeChanges);
+			newick.append(",");
+			appendNewick(newick, children.get(k)[1], k, heights, children, types, withTypeChanges);
+			newick.append(")");
+		}
+
+		if (typeChange) {
+			newick.append("[&type=").append(types[k]).append("]:").append(branchLength / 2).append(")");
+			newick.append("[&type=").append(types[parent]).append("]:").append(branchLength / 2);
+		} else {
+			newick.append("[&type=").append(types[k]).append("]:").append(branchLength);
+		}
+	}
+
+	SmallNumber[] randomPartials(Random random) {
+		SmallNumber[] partials = new SmallNumber[demes];
+		for (int i = 0; i < demes; i++)
+			partials[i] = new SmallNumber(random.nextDouble(), -random.nextInt(2000));
+		return partials;
+	}
+
+	static String repeat(double value, int count) {
+		StringBuilder values = new StringBuilder();
+		for (int i = 0; i < count; i++) values.append(i > 0 ? " " : "").append(value);
+		return values.toString();
+	}
+}
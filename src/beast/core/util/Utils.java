@@ -31,6 +31,44 @@ public class Utils {
     }
 
 
+    /**
+     * Finds the index of the time interval t lies in
+     * @param t
+     * @param times
+     * @param m the total number of time intervals + 1 (the total number of time change events)
+     * @return
+     */
+    public static int index(double t, double[] times, int m) {
+
+        int epoch = Arrays.binarySearch(times, t);
+
+        if (epoch < 0) {
+            epoch = -epoch - 1;
+        }
+
+        return Math.min(epoch, m-1);
+    }
+
+
+    /**
+     * Finds the index of the time interval an integration starting at t and running towards 0 lies in.
+     * A time closer than precision to the change time below it is taken to be on that change time.
+     * @param t
+     * @param times
+     * @param m the total number of time intervals + 1 (the total number of time change events)
+     * @param precision
+     * @return
+     */
+    public static int indexIntervalBelow(double t, double[] times, int m, double precision) {
+
+        int epoch = index(t, times, m);
+
+        if (epoch > 0 && Math.abs(t - times[epoch - 1]) < precision) epoch--;
+
+        return epoch;
+    }
+
+
     /**
      * Finds the index of the time interval t lies in
      * @param t
@@ -8,7 +8,6 @@ import beast.core.util.Log;
 import beast.evolution.tree.TreeInterface;
 import beast.math.distributions.ParametricDistribution;
 import beast.util.Randomizer;
-import org.apache.commons.math.MathException;
 
 import java.util.Arrays;
 
@@ -33,10 +32,25 @@ public class BirthDeathMigrationClusterModelUncoloured extends BirthDeathMigrati
 	RealParameter quantiles;
 	private int clusterCount;
 	private Integer[] clusters;
-	private Integer[] clusterIndices;
+
+	// cluster numbers in increasing order and the index of each one in clusterNumbers, searched by bisection
+	private int[] sortedClusterNumbers;
+	private int[] sortedClusterIndices;
+
+	// index of the current cluster in clusterNumbers and rateQuantiles
+	int clusterIndex;
 
 	private boolean recompute = true;
 
+	// rate of the current cluster, read at the start of each evaluation
+	double clusterRate = 1.;
+
+	// birth rates before the scaling by the rate of the cluster
+	double[] unscaledBirth;
+
+	// replaced by the cache of the cluster set when the cluster is part of one
+	ClusterRateCache rateCache = new ClusterRateCache();
+
 	@Override
 	public void initAndValidate() {
 
@@ -45,18 +59,22 @@ public class BirthDeathMigrationClusterModelUncoloured extends BirthDeathMigrati
 		clusters = clusterNumbers.get().getValues();
 		clusterCount = clusters.length;
 
-		Integer max = 0;
-		for (int i = 0; i < clusters.length; ++i) {
-			max = Math.max(max, clusters[i]);
-		}
-
-		clusterIndices = new Integer[max]; // todo: stop wasting so much memory!!
-		Arrays.fill(clusterIndices,0);
+		// the cluster numbers may be large and sparse, the map only takes memory proportional to their count
+		Integer[] order = new Integer[clusterCount];
+		for (int i = 0; i < clusterCount; i++) order[i] = i;
+		Arrays.sort(order, (i, j) -> Integer.compare(clusters[i], clusters[j]));
 
-		for (int i = 0; i < clusters.length; ++i) {
-			clusterIndices[clusters[i]-1] = i;
+		sortedClusterNumbers = new int[clusterCount];
+		sortedClusterIndices = new int[clusterCount];
+		for (int i = 0; i < clusterCount; i++) {
+			sortedClusterNumbers[i] = clusters[order[i]];
+			sortedClusterIndices[i] = order[i];
+			if (i > 0 && sortedClusterNumbers[i] == sortedClusterNumbers[i-1])
+				throw new RuntimeException("Cluster number " + sortedClusterNumbers[i] + " is used more than once.");
 		}
 
+		clusterIndex = getClusterIndex(currentCluster.get());
+
 		quantiles = quantileInput.get();
 		quantiles.setDimension(clusterCount);
 		Double[] initialQuantiles = new Double[clusterCount];
@@ -70,10 +88,6 @@ public class BirthDeathMigrationClusterModelUncoloured extends BirthDeathMigrati
 
 		distribution = rateDistInput.get();
 
-		TreeInterface tree = treeInput.get();
-
-		updateRates(tree);
-
 		//        try {
 		//            double mean = rateDistInput.get().getMean();
 		//            if (Math.abs(mean - 1.0) > 1e-6) {
@@ -84,56 +98,109 @@ public class BirthDeathMigrationClusterModelUncoloured extends BirthDeathMigrati
 		//        }
 	}
 
-	protected Double updateRates(TreeInterface tree) {
+	@Override
+	public double calculateTreeLogLikelihood(TreeInterface tree) {
 
-		birth = new Double[n*totalIntervals];
-		death = new Double[n*totalIntervals];
-		psi = new Double[n*totalIntervals];
-		b_ij = new Double[totalIntervals*(n*(n-1))];
-		M = new Double[totalIntervals*(n*(n-1))];
-		if (SAModel) r =  new Double[n * totalIntervals];
+		// read once per evaluation, it is part of the parameter snapshot and scales the birth rates in updateRates()
+		clusterRate = getRawRateForQuantile(clusterIndex);
 
-		if (transform) {
-			transformParameters();
-		}
-		else {
-
-			Double[] birthAmongDemesRates = new Double[1];
+		return super.calculateTreeLogLikelihood(tree);
+	}
 
-			if (birthAmongDemes) birthAmongDemesRates = birthRateAmongDemes.get().getValues();
+	/**
+	 * @return the snapshot of the parent class followed by the rate of the cluster, so that the rates are updated
+	 * again when the quantile of the cluster or the rate distribution changed
+	 */
+	@Override
+	double[] getParametersSnapshot() {
 
-			updateBirthDeathPsiParams();
+		double[] snapshot = super.getParametersSnapshot();
+		snapshot = Arrays.copyOf(snapshot, snapshot.length + 1);
+		snapshot[snapshot.length - 1] = clusterRate;
 
-			if (birthAmongDemes) {
+		return snapshot;
+	}
 
-				updateAmongParameter(b_ij, birthAmongDemesRates, b_ij_Changes, b_ijChangeTimes);
-			}
-		}
+	/**
+	 * If only the rate of the cluster changed since the last update, e.g. after a proposal on its quantile, the birth
+	 * rates are rescaled and the integrators set up again, all other rates and the change times are kept
+	 * @return the result of updateRates(), 0 if it was not called
+	 */
+	@Override
+	Double updateTimesAndRates() {
 
-        Double[] migRates = migrationMatrix.get().getValues();
-        Double factor;
-        if (migrationMatrixScaleFactor.get()!=null) {
-            factor = migrationMatrixScaleFactor.get().getValue();
-            for (int i = 0; i < M.length; i++) M[i] *= factor;
-        }
+		if (parametersSnapshot == null || unscaledBirth == null || unscaledBirth.length != birth.length)
+			return super.updateTimesAndRates();
 
+		double[] snapshot = getParametersSnapshot();
+		double[] previous = parametersSnapshot.clone();
+		previous[previous.length - 1] = clusterRate;
 
-		updateAmongParameter(M, migRates, migChanges, migChangeTimes);
+		if (snapshot[snapshot.length - 1] == parametersSnapshot[parametersSnapshot.length - 1] || !Arrays.equals(snapshot, previous))
+			return super.updateTimesAndRates();
 
-		updateRho();
+		parametersSnapshot = null; // only valid again once the update below has finished
 
-        for (int i = 0; i < totalIntervals; i++)
-            birth[i]*=getRateForCluster(clusterIndices[currentCluster.get()-1]);
+		scaleBirthRates();
+		setupIntegrators();
 
+		if (m_rho.get() != null && !contempData) computeRhoTips();
 		freq = frequencies.get().getValues();
 
+		parametersSnapshot = snapshot;
+
+		return 0.;
+	}
+
+	@Override
+	protected Double updateRates() {
+
+		super.updateRates();
+
+		unscaledBirth = birth.clone();
+		scaleBirthRates();
+
+		// the integrators are set up again with the birth rates of the cluster
 		setupIntegrators();
 
 		return 0.;
 	}
 
+	void scaleBirthRates() {
+
+		for (int i = 0; i < totalIntervals; i++)
+			birth[i] = unscaledBirth[i] * clusterRate;
+	}
+
+	/**
+	 * The model only depends on the quantile of its own cluster, proposals on the quantiles of the other clusters
+	 * do not make it dirty
+	 */
+	@Override
+	boolean isInputDirty(Input<?> input) {
+
+		if (input == quantileInput) return quantiles.isDirty(clusterIndex);
+
+		return super.isInputDirty(input);
+	}
+
+	/**
+	 * @param clusterNumber
+	 * @return the index of the cluster in clusterNumbers and rateQuantiles
+	 */
+	public int getClusterIndex(int clusterNumber) {
+
+		int k = Arrays.binarySearch(sortedClusterNumbers, clusterNumber);
+		if (k < 0) throw new RuntimeException("Cluster number " + clusterNumber + " is not in clusterNumbers.");
 
+		return sortedClusterIndices[k];
+	}
 
+
+	/**
+	 * @param cluster index of the cluster in clusterNumbers and rateQuantiles
+	 * @return the rate of the cluster, by which the birth rates of the first type are scaled
+	 */
 	public double getRateForCluster(int cluster) {
 		if (recompute) {
 			// this must be synchronized to avoid being called simultaneously by
@@ -144,17 +211,13 @@ public class BirthDeathMigrationClusterModelUncoloured extends BirthDeathMigrati
 			//            }
 		}
 
-		return getRawRateForQuantile(cluster) * birth[0]; // todo: make this work for birth dimension > 1?
+		return getRawRateForQuantile(cluster);
 	}
 
 
 	private double getRawRateForQuantile(int cluster) {
 
-		try {
-			return distribution.inverseCumulativeProbability(quantiles.getValue(cluster));
-		} catch (MathException e) {
-			throw new RuntimeException("Failed to compute inverse cumulative probability!");
-		}
+		return rateCache.getRate(distribution, quantiles.getValue(cluster), rateDistInput.isDirty());
 	}
 
 
@@ -0,0 +1,112 @@
+package beast.evolution.speciation;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.State;
+import beast.math.distributions.ParametricDistribution;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Sum of the likelihoods of many small clusters, typically transmission clusters sharing a rate distribution.
+ * The changed clusters are evaluated concurrently on a single pool of bounded size, one cluster per task, and
+ * the traversal of each cluster is sequential. The clusters sharing a rate distribution share the cache of its
+ * inverse cumulative probabilities.
+ */
+@Description("Likelihood of a set of clusters of the BirthDeathMigrationClusterModelUncoloured, whose changed clusters are evaluated in parallel")
+public class BirthDeathMigrationClusterSetUncoloured extends Distribution {
+
+	final public Input<List<BirthDeathMigrationClusterModelUncoloured>> clustersInput = new Input<>("cluster", "the likelihoods of the clusters", new ArrayList<>());
+
+	final public Input<Integer> threadsInput = new Input<>("threads", "maximum number of clusters evaluated at the same time " +
+			"(default: number of available processors)", Runtime.getRuntime().availableProcessors());
+
+	List<BirthDeathMigrationClusterModelUncoloured> clusters;
+
+	ForkJoinPool pool;
+
+	// all clusters are evaluated the first time, whether they are marked dirty or not
+	boolean evaluated = false;
+
+	@Override
+	public void initAndValidate() {
+
+		clusters = clustersInput.get();
+
+		if (clusters.isEmpty())
+			throw new RuntimeException("At least one cluster is required.");
+
+		Map<ParametricDistribution, ClusterRateCache> caches = new IdentityHashMap<>();
+
+		for (BirthDeathMigrationClusterModelUncoloured cluster : clusters) {
+
+			// the clusters are evaluated in parallel, a pool per cluster would only compete for the same processors
+			if (cluster.isParallelizedCalculation) {
+				cluster.isParallelizedCalculation = false;
+				cluster.executorShutdown();
+			}
+
+			cluster.rateCache = caches.computeIfAbsent(cluster.rateDistInput.get(), distribution -> new ClusterRateCache());
+		}
+
+		if (threadsInput.get() > 1 && clusters.size() > 1) pool = PiecewiseBirthDeathMigrationDistribution.getSharedPool(threadsInput.get());
+	}
+
+	@Override
+	public double calculateLogP() {
+
+		List<BirthDeathMigrationClusterModelUncoloured> changed = new ArrayList<>();
+		for (BirthDeathMigrationClusterModelUncoloured cluster : clusters)
+			if (!evaluated || cluster.isDirtyCalculation()) changed.add(cluster);
+
+		if (pool == null || changed.size() < 2) {
+			for (BirthDeathMigrationClusterModelUncoloured cluster : changed) cluster.calculateLogP();
+		}
+		else {
+
+			List<Callable<Double>> tasks = new ArrayList<>();
+			for (BirthDeathMigrationClusterModelUncoloured cluster : changed) tasks.add(cluster::calculateLogP);
+
+			try {
+				for (Future<Double> result : pool.invokeAll(tasks)) result.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new RuntimeException("Calculation of the cluster likelihoods failed: " + e.getMessage());
+			}
+		}
+
+		evaluated = true;
+
+		// summed in the order of the clusters, so that the result does not depend on the order of completion
+		logP = 0.;
+		for (BirthDeathMigrationClusterModelUncoloured cluster : clusters) {
+			logP += cluster.getCurrentLogP();
+			if (logP == Double.NEGATIVE_INFINITY) break;
+		}
+
+		return logP;
+	}
+
+	// Interface requirements:
+	@Override
+	public List<String> getArguments() {
+		return null;
+	}
+
+	@Override
+	public List<String> getConditions() {
+		return null;
+	}
+
+	@Override
+	public void sample(State state, Random random) {
+	}
+}
@@ -7,13 +7,17 @@ import beast.core.Input;
 
 import beast.math.*;
 
-import java.util.concurrent.*;
+import java.util.Arrays;
 
 
 /**
  * @author Denise Kuehnert
  *         Date: May 25, 2012
  *         Time: 11:38:27 AM
+ *
+ * With cacheRootConditions, the conditions at the root are kept between evaluations. Only the moves that change the
+ * root branch coloring alone, i.e. RootBranchRetype, benefit: an origin move changes the times of all nodes, so the
+ * whole tree is recomputed.
  */
 
 @Description("This model implements a multi-deme version of the BirthDeathSkylineModel with discrete locations and migration events among demes. " +
@@ -25,8 +29,21 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 	public Input<MultiTypeRootBranch> originBranchInput =
 			new Input<>("originBranch", "MultiTypeRootBranch for origin coloring");
 
+	public Input<Boolean> cacheRootConditionsInput = new Input<>("cacheRootConditions", "reuse the conditions at the root when neither the tree, " +
+			"the origin nor the rates changed, so that a new root branch coloring (RootBranchRetype) only requires the integration along the root branch. " +
+			"An origin move still recomputes the whole tree (default false)", false);
+
 	MultiTypeRootBranch originBranch;
 
+	// initial conditions of the root branch, and the rates they were computed with
+	p0ge_InitialConditions rootConditions;
+	double[] rootConditionsKey;
+	p0ge_InitialConditions storedRootConditions;
+	double[] storedRootConditionsKey;
+
+	// true if the conditions at the root were computed again during the current evaluation
+	boolean rootConditionsComputed;
+
 	Boolean print = false;
 
 	@Override
@@ -66,7 +83,7 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 	 * @param isMigrationEvent
 	 * @return
 	 */
-	public static p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG, Node node, boolean isMigrationEvent){ // PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
+	public p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG, Node node, boolean isMigrationEvent){ // PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
 
 		if (node.isLeaf() && !isMigrationEvent){ //TODO understand why the !isMigrationEvent here and document it (or remove it) //bc otherwise pb with getP ?
 			System.arraycopy(pInitialConditions[node.getNr()], 0, PG0.conditionsOnP, 0, n);
@@ -101,10 +118,16 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 				return Double.NEGATIVE_INFINITY;
 		}
 
-		collectTimes(T);
-		setRho();
+		// only the frequencies changed, the partials at the root of the last evaluation are combined with them
+		if (onlyFrequenciesChanged()) {
+			freq = frequencies.get().getValues();
+			logP = getRootLogLikelihood(tree, node_state);
+			return logP;
+		}
+
+		rootPartials = null; // only valid again once the traversal below has finished
 
-		if (updateRates() < 0 ||  (times[totalIntervals-1] > T)) {
+		if (updateTimesAndRates() < 0 ||  (times[totalIntervals-1] > T)) {
 			logP =  Double.NEGATIVE_INFINITY;
 			return logP;
 		}
@@ -119,6 +142,8 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 
 			pInitialConditions = getAllInitialConditionsForP(tree);
 
+			startTraversal();
+
 			if (conditionOnSurvival.get()) {
 
 				noSampleExistsProp = pInitialConditions[pInitialConditions.length-1];
@@ -136,11 +161,14 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 			//TODO remove these executorBootUp and shutdown if keeping the threadpool alive during the whole MCMC works
 			//if(isParallelizedCalculation) {executorBootUp();}
 
+			long traversalStart = System.nanoTime();
+			rootConditionsComputed = false;
+
 			if (orig>0){
 				if (originBranch.getChangeCount()>0) {
 					pSN = calculateOriginLikelihood(originBranch.getChangeCount()-1, 0, T-originBranch.getChangeTime(originBranch.getChangeCount()-1) );
 				} else {
-					pSN = calculateSubtreeLikelihood(root, false, null, 0, orig , PG);
+					pSN = getG(0, getRootConditions(PG), orig, PG, root, false);
 				}
 
 			} else {
@@ -154,7 +182,7 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 					t0 = T - ((MultiTypeNode) root.getChild(childIndex)).getChangeTime(childChangeCount - 1);
 
 
-				pSN = calculateSubtreeLikelihood(root.getChild(childIndex), false, null, 0., t0, PG);
+				pSN = calculateSubtreeLikelihood(root.getChild(childIndex), 0., t0, PG);
 
 				childIndex = Math.abs(childIndex - 1);
 
@@ -165,16 +193,17 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 
 				p0ge_InitialConditions p1SN;
 
-				p1SN = calculateSubtreeLikelihood(root.getChild(childIndex), false, null, 0., t0, PG);
+				p1SN = calculateSubtreeLikelihood(root.getChild(childIndex), 0., t0, PG);
 
 				for (int i=0; i<pSN.conditionsOnG.length; i++) pSN.conditionsOnG[i] = SmallNumber.multiply(pSN.conditionsOnG[i], p1SN.conditionsOnG[i]);
 
 			}
-			if (conditionOnSurvival.get()) {
-				pSN.conditionsOnG[node_state] = pSN.conditionsOnG[node_state].scalarMultiply(1/(1-noSampleExistsProp[node_state]));    // condition on survival
-			}
 
-			logP = Math.log(freq[node_state]) +  pSN.conditionsOnG[node_state].log();
+			// all branches are integrated again, unless only the root branch was
+			recordTraversalTime(traversalStart, (orig > 0 && !rootConditionsComputed) ? 0 : tree.getNodeCount());
+
+			rootPartials = pSN;
+			rootNoSampleExistsProp = pInitialConditions[pInitialConditions.length-1];
 
 		}catch(Exception e){
 			logP =  Double.NEGATIVE_INFINITY;
@@ -184,18 +213,39 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 			return logP;
 		}
 
-		if (print) System.out.println("final logL = " + logP);
+		logP = getRootLogLikelihood(tree, node_state);
 
-		if (Double.isInfinite(logP)) logP = Double.NEGATIVE_INFINITY;
+		//if (isParallelizedCalculation) executorShutdown();
+
+		return logP;
+	}
+
+	/**
+	 * Condition the partial of the type at the origin on survival and multiply it with the frequency of the type
+	 * @param tree
+	 * @param node_state type at the origin
+	 * @return the log likelihood, computed from rootPartials and rootNoSampleExistsProp
+	 */
+	double getRootLogLikelihood(TreeInterface tree, int node_state) {
+
+		SmallNumber g = rootPartials.conditionsOnG[node_state];
+
+		if (conditionOnSurvival.get()) {
+			g = g.scalarMultiply(1/(1-rootNoSampleExistsProp[node_state]));    // condition on survival
+		}
+
+		double logL = Math.log(freq[node_state]) +  g.log();
+
+		if (print) System.out.println("final logL = " + logL);
+
+		if (Double.isInfinite(logL)) logL = Double.NEGATIVE_INFINITY;
 
 		if (SAModel && !(removalProbability.get().getDimension()==n && removalProbability.get().getValue()==1.)) {
 			int internalNodeCount = tree.getLeafNodeCount() - ((Tree)tree).getDirectAncestorNodeCount()- 1;
-			logP +=  Math.log(2)*internalNodeCount;
+			logL +=  Math.log(2)*internalNodeCount;
 		}
 
-		//if (isParallelizedCalculation) executorShutdown();
-
-		return logP;
+		return logL;
 	}
 
 	/**
@@ -205,214 +255,270 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 	 * @param to
 	 * @return
 	 */
-	p0ge_InitialConditions calculateOriginLikelihood(Integer migIndex, double from, double to) {
+	p0ge_InitialConditions calculateOriginLikelihood(int migIndex, double from, double to) {
 
-		double[] pconditions = new double[n];
-		SmallNumber[] gconditions = new SmallNumber[n];
-		for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
+		p0ge_InitialConditions g = null;
 
-		p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
+		// the type changes of the origin branch are handled from the root up
+		for (int m = 0; m <= migIndex; m++) {
 
-		int index = Utils.index(to, times, totalIntervals);
+			double changeTo = (m == migIndex) ? to : T - originBranch.getChangeTime(m);
+			double changeFrom = (m == migIndex) ? from : (m + 1 == migIndex) ? to : T - originBranch.getChangeTime(m + 1);
 
-		int prevcol = originBranch.getChangeType(migIndex);
-		int col =  (migIndex > 0)?  originBranch.getChangeType(migIndex-1):  ((MultiTypeNode) tree.getRoot()).getNodeType();
+			double[] pconditions = new double[n];
+			SmallNumber[] gconditions = new SmallNumber[n];
+			for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
 
-		migIndex--;
+			p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
 
-		p0ge_InitialConditions g ;
+			int index = Utils.index(changeTo, times, totalIntervals);
 
-		if (migIndex >= 0){
+			int prevcol = originBranch.getChangeType(m);
+			int col =  (m > 0)?  originBranch.getChangeType(m-1):  ((MultiTypeNode) tree.getRoot()).getNodeType();
 
-			g = calculateOriginLikelihood(migIndex, to, T - originBranch.getChangeTime(migIndex));
+			if (m == 0) g = getG(changeTo, getRootConditions(PG), orig, PG, tree.getRoot(), false);
 
 			System.arraycopy(g.conditionsOnP, 0, pconditions, 0, n);
-
 			if (birthAmongDemes)
 				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(b_ij[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
 			else
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(M[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
+				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(M[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);		// with ratechange in M
 
+			g = getG(changeFrom, init, changeTo, PG);
+		}
 
-			return getG(from,  init,  to, PG);
+		return g;
+	}
 
-		}
-		else {
-			g = calculateSubtreeLikelihood(tree.getRoot(), false, null, to, orig, PG);
+	/**
+	 * @param PG
+	 * @return a copy of the initial conditions of the root branch, only computed again if the tree, the origin or the rates changed
+	 */
+	p0ge_InitialConditions getRootConditions(p0ge_ODE PG) {
 
-			System.arraycopy(g.conditionsOnP, 0, pconditions, 0, n);
-			if (birthAmongDemes)
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(b_ij[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
-			else
-				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(M[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);		// with ratechange in M
+		double[] key = cacheRootConditionsInput.get() ? getRatesSnapshot() : null;
 
-			return getG(from, init, to, PG, tree.getRoot(), false);
+		if (key == null || rootConditions == null || treeInput.isDirty() || !Arrays.equals(key, rootConditionsKey)) {
+			rootConditions = calculateNodeConditions(tree.getRoot(), orig, PG);
+			rootConditionsKey = key;
+			rootConditionsComputed = true;
 		}
+
+		return new p0ge_InitialConditions(rootConditions.conditionsOnP.clone(), rootConditions.conditionsOnG.clone());
 	}
 
-	p0ge_InitialConditions calculateSubtreeLikelihood(Node node, Boolean isMigrationEvent, Integer migrationIndex, double from, double to, p0ge_ODE PG) {
+	@Override
+	public void store() {
 
-		double[] pconditions = new double[n];
-		SmallNumber[] gconditions = new SmallNumber[n];
-		for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
+		storedRootConditions = rootConditions;
+		storedRootConditionsKey = rootConditionsKey;
 
-		p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
+		super.store();
+	}
 
-		int nodestate = ((MultiTypeNode)node).getNodeType();
-		int index = Utils.index(to, times, totalIntervals);
+	@Override
+	public void restore() {
+
+		rootConditions = storedRootConditions;
+		rootConditionsKey = storedRootConditionsKey;
+
+		super.restore();
+	}
+
+	/**
+	 * Compute the partials of the subtree below a branch. The type changes on the branch are handled in a loop,
+	 * from the node up, so that the depth of the recursion does not grow with their number.
+	 * @param node
+	 * @param from time of the parent
+	 * @param to time of the last type change on the branch, or of the node if there is none
+	 * @param PG
+	 * @return
+	 */
+	p0ge_InitialConditions calculateSubtreeLikelihood(Node node, double from, double to, p0ge_ODE PG) {
+
+		MultiTypeNode mtNode = (MultiTypeNode) node;
+		int changeCount = mtNode.getChangeCount();
+
+		if (changeCount == 0) return calculateNodeLikelihood(node, from, to, PG);
 
-		if (isMigrationEvent){ // migration event
+		// the segment of branch between the node and the first type change
+		p0ge_InitialConditions g = calculateNodeLikelihood(node, (changeCount > 1) ? T - mtNode.getChangeTime(0) : to, T - node.getHeight(), PG);
 
-			int prevcol = ((MultiTypeNode) node).getChangeType(migrationIndex);
-			int col =  (migrationIndex > 0)?  ((MultiTypeNode) node).getChangeType(migrationIndex-1):  ((MultiTypeNode) node).getNodeType();
-			double time ;
+		for (int m = 0; m < changeCount; m++){ // migration event
 
-			migrationIndex--;
+			double changeTo = (m == changeCount - 1) ? to : T - mtNode.getChangeTime(m);
+			double changeFrom = (m == changeCount - 1) ? from : (m + 1 == changeCount - 1) ? to : T - mtNode.getChangeTime(m + 1);
 
-			time = (migrationIndex >= 0)? ((MultiTypeNode) node).getChangeTime(migrationIndex) :node.getHeight();
-			p0ge_InitialConditions g = calculateSubtreeLikelihood(node, (migrationIndex >= 0), migrationIndex, to, T-time, PG);
+			double[] pconditions = new double[n];
+			SmallNumber[] gconditions = new SmallNumber[n];
+			for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
+
+			p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
+
+			int index = Utils.index(changeTo, times, totalIntervals);
+
+			int prevcol = mtNode.getChangeType(m);
+			int col =  (m > 0)?  mtNode.getChangeType(m-1):  mtNode.getNodeType();
 
 			System.arraycopy(g.conditionsOnP, 0, init.conditionsOnP, 0, n);
 			if (birthAmongDemes) // this might be a birth among demes where only the child with the different type got sampled
 				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(b_ij[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
-			if (M[0]!=null)     // or it really is a migration event
+			if (migration)     // or it really is a migration event
 				init.conditionsOnG[prevcol] = g.conditionsOnG[col].scalarMultiply(M[totalIntervals * (prevcol * (n - 1) + (col < prevcol ? col : col - 1)) + index]);
 
-			return getG(from, init, to, PG, node, true);
+			g = getG(changeFrom, init, changeTo, PG, node, true);
 		}
 
-		else {
+		return g;
+	}
 
-			if (migrationIndex==null &&  ((MultiTypeNode)node).getChangeCount()>0){ // node has migration event(psi)
-				return calculateSubtreeLikelihood(node, true, ((MultiTypeNode)node).getChangeCount()-1, from, to, PG) ;
-			}
+	/**
+	 * Compute the partials at the node (sampling, sampled ancestor or birth event) and integrate them up to the first type change above the node, or to the parent
+	 * @param node
+	 * @param from
+	 * @param to time of the node
+	 * @param PG
+	 * @return
+	 */
+	p0ge_InitialConditions calculateNodeLikelihood(Node node, double from, double to, p0ge_ODE PG) {
+
+		return getG(from, calculateNodeConditions(node, to, PG), to, PG, node, false);
+	}
 
-			else{
+	/**
+	 * Compute the initial conditions of the branch above the node (sampling, sampled ancestor or birth event)
+	 * @param node
+	 * @param to time of the node
+	 * @param PG
+	 * @return
+	 */
+	p0ge_InitialConditions calculateNodeConditions(Node node, double to, p0ge_ODE PG) {
 
-				if (node.isLeaf()){ // sampling event
+		double[] pconditions = new double[n];
+		SmallNumber[] gconditions = new SmallNumber[n];
+		for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
 
-					if (!isRhoTip[node.getNr()]){
+		p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
 
-						init.conditionsOnG[nodestate] = SAModel
-								? new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]*(1-r[nodestate * totalIntervals + index]))
-								*psi[nodestate * totalIntervals + index])
+		int nodestate = ((MultiTypeNode)node).getNodeType();
+		int index = Utils.index(to, times, totalIntervals);
 
-								: new SmallNumber(psi[nodestate * totalIntervals + index]);
+		if (node.isLeaf()){ // sampling event
 
-					} else {
-						init.conditionsOnG[nodestate] = SAModel?
-								new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]/(1-rho[nodestate*totalIntervals+index])*(1-r[nodestate * totalIntervals + index]))
-										*rho[nodestate*totalIntervals+index])  :
-								new SmallNumber(rho[nodestate*totalIntervals+index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
-					}
+			if (!isRhoTip[node.getNr()]){
 
-					if (print) System.out.println("Sampling at time " + to);
+				init.conditionsOnG[nodestate] = SAModel
+						? new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]*(1-r[nodestate * totalIntervals + index]))
+						*psi[nodestate * totalIntervals + index])
 
-					return getG(from, init, to, PG, node, false);
-				}
+						: new SmallNumber(psi[nodestate * totalIntervals + index]);
 
-				else if (node.getChildCount()==2){  // birth / infection event or sampled ancestor
+			} else {
+				init.conditionsOnG[nodestate] = SAModel?
+						new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]/(1-rho[nodestate*totalIntervals+index])*(1-r[nodestate * totalIntervals + index]))
+								*rho[nodestate*totalIntervals+index])  :
+						new SmallNumber(rho[nodestate*totalIntervals+index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
+			}
 
-					if (node.getChild(0).isDirectAncestor() || node.getChild(1).isDirectAncestor()) {   // found a sampled ancestor
+			if (print) System.out.println("Sampling at time " + to);
 
-						if (r==null)
-							throw new RuntimeException("Error: Sampled ancestor found, but removalprobability not specified!");
+			return init;
+		}
 
-						int childIndex = 0;
+		else if (node.getChildCount()==2){  // birth / infection event or sampled ancestor
 
-						if (node.getChild(childIndex).isDirectAncestor()) childIndex = 1;
+			if (node.getChild(0).isDirectAncestor() || node.getChild(1).isDirectAncestor()) {   // found a sampled ancestor
 
-						p0ge_InitialConditions g = calculateSubtreeLikelihood(node.getChild(childIndex), false, null, to, T - node.getChild(childIndex).getHeight(), PG);
+				if (r==null)
+					throw new RuntimeException("Error: Sampled ancestor found, but removalprobability not specified!");
 
-						int saNodeState = ((MultiTypeNode) node.getChild(childIndex ^ 1)).getNodeType(); // get state of direct ancestor, XOR operation gives 1 if childIndex is 0 and vice versa
+				int childIndex = 0;
 
-						if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
+				if (node.getChild(childIndex).isDirectAncestor()) childIndex = 1;
 
-							init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState];
-							init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(psi[saNodeState * totalIntervals + index]
-									* (1-r[saNodeState * totalIntervals + index]));
+				p0ge_InitialConditions g = calculateSubtreeLikelihood(node.getChild(childIndex), to, T - node.getChild(childIndex).getHeight(), PG);
 
-							//							System.out.println("SA but not rho sampled");
+				int saNodeState = ((MultiTypeNode) node.getChild(childIndex ^ 1)).getNodeType(); // get state of direct ancestor, XOR operation gives 1 if childIndex is 0 and vice versa
 
-						} else {
-							// TODO Change: can be dealt with with getAllPInitialConds
-							init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState]*(1-rho[saNodeState*totalIntervals+index]) ;
-							init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(rho[saNodeState*totalIntervals+index]
-									* (1-r[saNodeState * totalIntervals + index]));
+				if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
 
-						}
+					init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState];
+					init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(psi[saNodeState * totalIntervals + index]
+							* (1-r[saNodeState * totalIntervals + index]));
 
-					}
+					//							System.out.println("SA but not rho sampled");
 
-					else {   // birth / infection event
+				} else {
+					// TODO Change: can be dealt with with getAllPInitialConds
+					init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState]*(1-rho[saNodeState*totalIntervals+index]) ;
+					init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(rho[saNodeState*totalIntervals+index]
+							* (1-r[saNodeState * totalIntervals + index]));
 
-						int indexFirstChild = 0;
-						if (node.getChild(1).getNr() > node.getChild(0).getNr()) indexFirstChild = 1; // always start with the same child to avoid numerical differences
+				}
 
-						int indexSecondChild = Math.abs(indexFirstChild-1);
+			}
 
-						double t0 = T - node.getChild(indexFirstChild).getHeight();
-						int childChangeCount = ((MultiTypeNode)node.getChild(indexFirstChild)).getChangeCount();
-						if (childChangeCount > 0)
-							t0 = T - ((MultiTypeNode)node.getChild(indexFirstChild)).getChangeTime(childChangeCount-1);
+			else {   // birth / infection event
 
+				int indexFirstChild = 0;
+				if (node.getChild(1).getNr() > node.getChild(0).getNr()) indexFirstChild = 1; // always start with the same child to avoid numerical differences
 
-						double t1 = T - node.getChild(indexSecondChild).getHeight();
-						childChangeCount = ((MultiTypeNode)node.getChild(indexSecondChild)).getChangeCount();
-						if (childChangeCount > 0)
-							t1 = T - ((MultiTypeNode)node.getChild(indexSecondChild)).getChangeTime(childChangeCount-1);
+				int indexSecondChild = Math.abs(indexFirstChild-1);
 
-						p0ge_InitialConditions g0 = new p0ge_InitialConditions();
-						p0ge_InitialConditions g1 = new p0ge_InitialConditions();
+				double t0 = T - node.getChild(indexFirstChild).getHeight();
+				int childChangeCount = ((MultiTypeNode)node.getChild(indexFirstChild)).getChangeCount();
+				if (childChangeCount > 0)
+					t0 = T - ((MultiTypeNode)node.getChild(indexFirstChild)).getChangeTime(childChangeCount-1);
 
-						// if the calculations are parallelized,
-						// evaluate if the next step in the traversal should be split between one new thread and the currrent thread and run in parallel,
-						// the split is made if the two subtrees of the current node are bigger than a set threshold.
-						if(isParallelizedCalculation
-								&& weightOfNodeSubTree[node.getChild(indexFirstChild).getNr()] >  parallelizationThreshold
-								&& weightOfNodeSubTree[node.getChild(indexSecondChild).getNr()] > parallelizationThreshold){
 
-							try {
-								// start a new thread to take care of the second subtree
-								Future<p0ge_InitialConditions> secondChildTraversal = pool.submit(
-										new TraversalServiceColoured(node.getChild(indexSecondChild), false, null, to, t1));
+				double t1 = T - node.getChild(indexSecondChild).getHeight();
+				childChangeCount = ((MultiTypeNode)node.getChild(indexSecondChild)).getChangeCount();
+				if (childChangeCount > 0)
+					t1 = T - ((MultiTypeNode)node.getChild(indexSecondChild)).getChangeTime(childChangeCount-1);
+
+				p0ge_InitialConditions g0 = new p0ge_InitialConditions();
+				p0ge_InitialConditions g1 = new p0ge_InitialConditions();
+
+				// if the calculations are parallelized,
+				// evaluate if the next step in the traversal should be split between one new thread and the currrent thread and run in parallel,
+				// the split is made if the two subtrees of the current node are bigger than a set threshold.
+				if(isParallelizedCalculation
+						&& weightOfNodeSubTree[node.getChild(indexFirstChild).getNr()] >  parallelizationThreshold
+						&& weightOfNodeSubTree[node.getChild(indexSecondChild).getNr()] > parallelizationThreshold){
 
-								g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), false, null, to, t0, PG);
-								g1 = secondChildTraversal.get();
+					// let another thread take care of the second subtree, exceptions are rethrown by join()
+					TraversalServiceColoured secondChildTraversal = new TraversalServiceColoured(node.getChild(indexSecondChild), to, t1);
+					forkTraversal(secondChildTraversal);
 
-							} catch (Exception e) {
-								e.printStackTrace();
-								//TODO deal with exceptions properly, maybe do the traversal serially if something failed.
-							}
-						} else {
-							g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), false, null, to, t0, PG);
-							g1 = calculateSubtreeLikelihood(node.getChild(indexSecondChild), false, null, to, t1, PG);
-						}
+					g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, t0, PG);
+					g1 = secondChildTraversal.join();
+				} else {
+					g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, t0, PG);
+					g1 = calculateSubtreeLikelihood(node.getChild(indexSecondChild), to, t1, PG);
+				}
 
-						System.arraycopy(g0.conditionsOnP, 0, init.conditionsOnP, 0, n);
+				System.arraycopy(g0.conditionsOnP, 0, init.conditionsOnP, 0, n);
 
-						if (((MultiTypeNode) node.getChild(0)).getFinalType() == nodestate && nodestate == ((MultiTypeNode) node.getChild(1)).getFinalType()) { // within type transmission event
+				if (((MultiTypeNode) node.getChild(0)).getFinalType() == nodestate && nodestate == ((MultiTypeNode) node.getChild(1)).getFinalType()) { // within type transmission event
 
-							init.conditionsOnG[nodestate] = SmallNumber.multiply(g0.conditionsOnG[nodestate], g1.conditionsOnG[nodestate]).scalarMultiply(birth[nodestate * totalIntervals + index]);
+					init.conditionsOnG[nodestate] = SmallNumber.multiply(g0.conditionsOnG[nodestate], g1.conditionsOnG[nodestate]).scalarMultiply(birth[nodestate * totalIntervals + index]);
 
-						} else { // among type transmission event
+				} else { // among type transmission event
 
-							if 	(((MultiTypeNode) node.getChild(0)).getFinalType() != nodestate && nodestate != ((MultiTypeNode) node.getChild(1)).getFinalType())
-								throw new RuntimeException("Error: Invalid tree (both children have typeChange event at parent node!");
+					if 	(((MultiTypeNode) node.getChild(0)).getFinalType() != nodestate && nodestate != ((MultiTypeNode) node.getChild(1)).getFinalType())
+						throw new RuntimeException("Error: Invalid tree (both children have typeChange event at parent node!");
 
-							int child = (((MultiTypeNode) node.getChild(0)).getFinalType() != nodestate) ? 0 : 1;
-							int childstate = ((MultiTypeNode)node.getChild(child)).getFinalType();
+					int child = (((MultiTypeNode) node.getChild(0)).getFinalType() != nodestate) ? 0 : 1;
+					int childstate = ((MultiTypeNode)node.getChild(child)).getFinalType();
 
-							init.conditionsOnG[nodestate] =
-									SmallNumber.multiply(g0.conditionsOnG[child==0? childstate : nodestate], g1.conditionsOnG[child==1? childstate : nodestate]).scalarMultiply(b_ij[totalIntervals * (childstate * (n - 1) + (nodestate < childstate ? nodestate : nodestate - 1)) + index]);
+					init.conditionsOnG[nodestate] =
+							SmallNumber.multiply(g0.conditionsOnG[child==0? childstate : nodestate], g1.conditionsOnG[child==1? childstate : nodestate]).scalarMultiply(b_ij[totalIntervals * (childstate * (n - 1) + (nodestate < childstate ? nodestate : nodestate - 1)) + index]);
 
-						}
-					}
 				}
 			}
 		}
 
-		return getG(from, init, to, PG, node, false);
+		return init;
 	}
 
 
@@ -455,21 +561,17 @@ public class BirthDeathMigrationModel extends PiecewiseBirthDeathMigrationDistri
 	}
 
 	class TraversalServiceColoured extends TraversalService{
+		private static final long serialVersionUID = 1L;
 
-		private Boolean isMigrationEvent;
-		private Integer migrationIndex;
-
-		public TraversalServiceColoured(Node root, Boolean isMigrationEvent, Integer migrationIndex, double from, double to) {
+		public TraversalServiceColoured(Node root, double from, double to) {
 
-			super(root, from, to, true);
-			this.isMigrationEvent = isMigrationEvent;
-			this.migrationIndex = migrationIndex;
+			super(root, from, to);
 		}
 
 		@Override
 		protected p0ge_InitialConditions calculateSubtreeLikelihoodInThread() {
 
-			return calculateSubtreeLikelihood(rootSubtree, isMigrationEvent, migrationIndex, from, to, PG);
+			return calculateSubtreeLikelihood(rootSubtree, from, to, PG);
 		}
 
 	}
@@ -8,9 +8,17 @@ import beast.core.Description;
 import beast.core.util.Utils;
 
 import beast.math.*;
+import beast.math.IntegrationStatistics.Counter;
+
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
 
 import java.io.PrintStream;
-import java.util.concurrent.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Denise Kuehnert
@@ -31,8 +39,39 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 	public Input<Boolean> storeNodeTypes = new Input<>("storeNodeTypes", "store tip node types? this assumes that tip types cannot change (default false)", false);
 
+	public Input<Boolean> batchedTraversalInput = new Input<>("batchedTraversal", "integrate the branches of all lineages alive at the same time as one ODE system, " +
+			"in a single sweep from the present to the origin. Requires sharedP0, not available with sampled ancestors (default false)", false);
+
+	public Input<Boolean> iterativeTraversalInput = new Input<>("iterativeTraversal", "compute the partials with a loop over the tree stored in arrays " +
+			"instead of recursing over the nodes, for very deep trees. The subtrees are then not evaluated in parallel (default false)", false);
+
+	public Input<Boolean> memoizeTipBranchesInput = new Input<>("memoizeTipBranches", "integrate the branches of tips with the same type and " +
+			"sampling time only once per evaluation, up to the same parent time or to the first change time above the tips (default false)", false);
+
 	private int[] nodeStates;
 
+	// partial likelihoods at the top of the branch above each node, kept between evaluations
+	p0ge_InitialConditions[] nodePartials;
+	p0ge_InitialConditions[] storedNodePartials;
+
+	// nodes whose partials have to be recomputed in the current evaluation
+	boolean[] isDirtyNode;
+
+	// rates the cached partials were computed with (null if the cache is not valid)
+	double[] ratesSnapshot;
+	double[] storedRatesSnapshot;
+
+	double[][] cachedPInitialConditions;
+	double[][] storedPInitialConditions;
+	p0_DenseOutput storedPDenseOutput;
+	ge_Propagators storedGePropagators;
+
+	// tree structure used by the iterative traversal, null otherwise
+	FlattenedTree flattenedTree;
+
+	// results of the tip branch integrations of the current evaluation, shared by the threads of the traversal
+	Map<TipBranchKey, p0ge_InitialConditions> tipBranchMemo = new ConcurrentHashMap<>();
+
 	Boolean print = false;
 
 	@Override
@@ -44,6 +83,19 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 		super.initAndValidate();
 
+		if (batchedTraversalInput.get() && !sharedP0Input.get())
+			throw new RuntimeException("Error: batchedTraversal can only be used together with sharedP0.");
+
+		if (batchedTraversalInput.get() && SAModel)
+			throw new RuntimeException("Error: batchedTraversal is not implemented with sampled ancestors.");
+
+		if (batchedTraversalInput.get() && iterativeTraversalInput.get())
+			throw new RuntimeException("Error: batchedTraversal and iterativeTraversal cannot be used together.");
+
+		// the iterative traversal runs in the calling thread
+		flattenedTree = iterativeTraversalInput.get() ? new FlattenedTree() : null;
+		if (flattenedTree != null) isParallelizedCalculation = false;
+
 		if (storeNodeTypes.get()) {
 
 			nodeStates = new int[ntaxa];
@@ -52,6 +104,14 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 				nodeStates[node.getNr()] = getNodeState(node, true);
 			}
 		}
+
+		nodePartials = new p0ge_InitialConditions[tree.getNodeCount()];
+		storedNodePartials = new p0ge_InitialConditions[tree.getNodeCount()];
+		isDirtyNode = new boolean[tree.getNodeCount()];
+		ratesSnapshot = null;
+		storedRatesSnapshot = null;
+		cachedPInitialConditions = null;
+		storedPInitialConditions = null;
 	}
 
 	void computeRhoTips(){
@@ -83,13 +143,27 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 	 */
 	public p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG, Node node){ // PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
 
-		if (node.isLeaf()) {
-			System.arraycopy(pInitialConditions[node.getNr()], 0, PG0.conditionsOnP, 0, n);
-		}
+		if (node.isLeaf()) return getLeafG(t, PG0, t0, PG, node.getNr());
 
 		return getG(t,  PG0,  t0, PG);
 	}
 
+	/**
+	 * getG for the branch above a leaf, starting from the p0 of the leaf
+	 * @param t
+	 * @param PG0 initial conditions, p0 is replaced by the one of the leaf
+	 * @param t0
+	 * @param PG
+	 * @param nr number of the leaf
+	 * @return
+	 */
+	p0ge_InitialConditions getLeafG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG, int nr) {
+
+		System.arraycopy(pInitialConditions[nr], 0, PG0.conditionsOnP, 0, n);
+
+		return getG(t, PG0, t0, PG);
+	}
+
 	@Override
 	public double calculateTreeLogLikelihood(TreeInterface tree) {
 
@@ -100,27 +174,53 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 		else
 			updateOrigin(root);
 
+		// only the frequencies changed, the partials at the root of the last evaluation are combined with them
+		if (orig >= 0 && onlyFrequenciesChanged()) {
+			freq = frequencies.get().getValues();
+			logP = getRootLogLikelihood(tree);
+			return logP;
+		}
 
-		collectTimes(T);
-		setRho();
+		rootPartials = null; // only valid again once the traversal below has finished
 
-		if ((orig < 0) || updateRates() < 0 ||  (times[totalIntervals-1] > T)) {
+		if ((orig < 0) || updateTimesAndRates() < 0 ||  (times[totalIntervals-1] > T)) {
 			logP =  Double.NEGATIVE_INFINITY;
 			return logP;
 		}
 
+		// only branches below a changed node need to be integrated again, unless the rates changed
+		double[] currentRates = getRatesSnapshot();
+		boolean ratesChanged = ratesSnapshot == null || !Arrays.equals(currentRates, ratesSnapshot)
+				|| (tipTypeArray.get() != null && tipTypeArray.get().somethingIsDirty());
+		ratesSnapshot = null; // the cache is only valid again once the traversal below has finished
+
+		if (flattenedTree != null) {
+			flattenedTree.update(tree, leaf -> getNodeState(leaf, false));
+			updateDirtyNodesIterative(ratesChanged);
+		} else
+			updateDirtyNodes(root, ratesChanged);
+
+		tipBranchMemo.clear();
+
+		int integratedBranches = 0;
+		for (int i = 0; i < tree.getNodeCount(); i++) if (isDirtyNode[i]) integratedBranches++;
+
 		// update the threshold for parallelization
 		//TODO only do it if tree shape changed
 		updateParallelizationThreshold();
 
 		double[] noSampleExistsProp ;
 
-		SmallNumber PrSN = new SmallNumber(0);
 		double nosample = 0;
 
 		try{  // start calculation
 
-			pInitialConditions = getAllInitialConditionsForP(tree);
+			if (ratesChanged || cachedPInitialConditions == null || leafHeightsChanged(tree))
+				cachedPInitialConditions = getAllInitialConditionsForP(tree);
+
+			pInitialConditions = cachedPInitialConditions;
+
+			startTraversal();
 
 			if (conditionOnSurvival.get()) {
 
@@ -141,6 +241,13 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 			//if(isParallelizedCalculation) {executorBootUp();}
 
+			long traversalStart = System.nanoTime();
+
+			// the partials of all dirty nodes are computed in one sweep, the calls below then only read them
+			if (batchedTraversalInput.get()) calculateSubtreeLikelihoodsBatched(tree);
+
+			if (flattenedTree != null) calculateSubtreeLikelihoodsIterative();
+
 			if ( orig > 0 ) {
 				pSN = calculateSubtreeLikelihood(root,0,orig, PG);}
 			else {
@@ -154,23 +261,17 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 				p0ge_InitialConditions p1SN;
 				p1SN = calculateSubtreeLikelihood(root.getChild(childIndex),0., T - root.getChild(childIndex).getHeight(), PG);
 
-				for (int i =0; i<pSN.conditionsOnG.length; i++) pSN.conditionsOnG[i] = SmallNumber.multiply(pSN.conditionsOnG[i], p1SN.conditionsOnG[i]);
+				// combine into a new object, the partials of the children are cached
+				SmallNumber[] rootConditionsOnG = new SmallNumber[n];
+				for (int i =0; i<n; i++) rootConditionsOnG[i] = SmallNumber.multiply(pSN.conditionsOnG[i], p1SN.conditionsOnG[i]);
+				pSN = new p0ge_InitialConditions(pSN.conditionsOnP, rootConditionsOnG);
 
 			}
 
-			if (print) System.out.print("final p per state = ");
+			recordTraversalTime(traversalStart, integratedBranches);
 
-			for (int root_state=0; root_state<n; root_state++){
-
-				if (pSN.conditionsOnG[root_state].getMantissa()>0 )
-					PrSN = SmallNumber.add(PrSN, pSN.conditionsOnG[root_state].scalarMultiply(freq[root_state]));
-
-				if (print) System.out.print(pSN.conditionsOnP[root_state] + "\t" + pSN.conditionsOnG[root_state] + "\t");
-			}
-
-			if (conditionOnSurvival.get()){
-				PrSN = PrSN.scalarMultiply(1/(1-nosample));
-			}
+			rootPartials = pSN;
+			rootNoSampleExistsProp = pInitialConditions[pInitialConditions.length-1];
 
 		}catch(Exception e){
 
@@ -182,19 +283,121 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 			return logP;
 		}
 
-		logP = PrSN.log();
+		ratesSnapshot = currentRates;
 
-		if (print) System.out.println("\nlogP = " + logP);
+		logP = getRootLogLikelihood(tree);
 
-		if (Double.isInfinite(logP)) logP = Double.NEGATIVE_INFINITY;
+		//if(isParallelizedCalculation) executorShutdown();
+		return logP;
+	}
+
+	/**
+	 * Combine the partials at the root with the frequencies of the types and condition on survival
+	 * @param tree
+	 * @return the log likelihood, computed from rootPartials and rootNoSampleExistsProp
+	 */
+	double getRootLogLikelihood(TreeInterface tree) {
+
+		double nosample = 0;
+
+		if (conditionOnSurvival.get()) {
+
+			for (int root_state=0; root_state<n; root_state++){
+				nosample += freq[root_state] *  rootNoSampleExistsProp[root_state] ;
+			}
+
+			if (nosample<0 || nosample>1)
+				return Double.NEGATIVE_INFINITY;
+		}
+
+		SmallNumber PrSN = new SmallNumber(0);
+
+		if (print) System.out.print("final p per state = ");
+
+		for (int root_state=0; root_state<n; root_state++){
+
+			if (rootPartials.conditionsOnG[root_state].getMantissa()>0 )
+				PrSN = SmallNumber.add(PrSN, rootPartials.conditionsOnG[root_state].scalarMultiply(freq[root_state]));
+
+			if (print) System.out.print(rootPartials.conditionsOnP[root_state] + "\t" + rootPartials.conditionsOnG[root_state] + "\t");
+		}
+
+		if (conditionOnSurvival.get()){
+			PrSN = PrSN.scalarMultiply(1/(1-nosample));
+		}
+
+		double logL = PrSN.log();
+
+		if (print) System.out.println("\nlogP = " + logL);
+
+		if (Double.isInfinite(logL)) logL = Double.NEGATIVE_INFINITY;
 
 		if (SAModel && !(removalProbability.get().getDimension()==n && removalProbability.get().getValue()==1.)) {
 			int internalNodeCount = tree.getLeafNodeCount() - ((Tree)tree).getDirectAncestorNodeCount()- 1;
-			logP +=  Math.log(2)*internalNodeCount;
+			logL +=  Math.log(2)*internalNodeCount;
 		}
 
-		//if(isParallelizedCalculation) executorShutdown();
-		return logP;
+		return logL;
+	}
+
+	/**
+	 * Mark all nodes whose partials need to be recomputed: nodes whose branch changed,
+	 * their ancestors and nodes without a cached partial.
+	 * @param node
+	 * @param updateAll if true, all nodes of the subtree are marked
+	 * @return true if the partial of node needs to be recomputed
+	 */
+	boolean updateDirtyNodes(Node node, boolean updateAll) {
+
+		boolean isDirty = updateAll || node.isDirty() != Tree.IS_CLEAN
+				|| (nodePartials[node.getNr()] == null && !node.isDirectAncestor());
+
+		for (Node child : node.getChildren()) {
+			if (updateDirtyNodes(child, updateAll)) isDirty = true;
+		}
+
+		isDirtyNode[node.getNr()] = isDirty;
+
+		return isDirty;
+	}
+
+	/**
+	 * @param tree
+	 * @return true if the height of any leaf changed since the last evaluation
+	 */
+	boolean leafHeightsChanged(TreeInterface tree) {
+
+		for (Node leaf : tree.getExternalNodes()) {
+			if (leaf.isDirty() != Tree.IS_CLEAN) return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public void store() {
+
+		System.arraycopy(nodePartials, 0, storedNodePartials, 0, nodePartials.length);
+		storedRatesSnapshot = ratesSnapshot;
+		storedPInitialConditions = cachedPInitialConditions;
+		storedPDenseOutput = pDenseOutput;
+		storedGePropagators = gePropagators;
+
+		super.store();
+	}
+
+	@Override
+	public void restore() {
+
+		p0ge_InitialConditions[] tmp = nodePartials;
+		nodePartials = storedNodePartials;
+		storedNodePartials = tmp;
+		ratesSnapshot = storedRatesSnapshot;
+		cachedPInitialConditions = storedPInitialConditions;
+		pDenseOutput = storedPDenseOutput;
+		gePropagators = storedGePropagators;
+
+		super.restore();
 	}
 
 	private int getNodeState(Node node, Boolean init){
@@ -240,6 +443,8 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 	 */
 	p0ge_InitialConditions calculateSubtreeLikelihood(Node node, double from, double to, p0ge_ODE PG) {
 
+		if (!isDirtyNode[node.getNr()]) return nodePartials[node.getNr()];
+
 		double[] pconditions = new double[n];
 		SmallNumber[] gconditions = new SmallNumber[n];
 		for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
@@ -250,42 +455,13 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 		if (node.isLeaf()){ // sampling event
 
-			int nodestate = getNodeState(node, false);
-
-			if (nodestate==-1) { //unknown state
-
-				if (SAModel)
-					throw new ConstraintViolatedException("SA model not implemented with unknown states!");
-
-				for (int i=0; i<n; i++) {
-
-					if (!isRhoTip[node.getNr()]) {
-						init.conditionsOnG[i] = new SmallNumber(psi[i * totalIntervals + index]);
-					}
-					else
-						init.conditionsOnG[i] = new SmallNumber(rho[i*totalIntervals+index]);
-				}
-			}
-			else {
-
-				if (!isRhoTip[node.getNr()]) {
-
-					init.conditionsOnG[nodestate] = SAModel?
-							new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]*(1-r[nodestate * totalIntervals + index]))
-									*psi[nodestate * totalIntervals + index]) // with SA: ψ_i(r + (1 − r)p_i(τ))
-							: new SmallNumber(psi[nodestate * totalIntervals + index]);
+			setLeafConditions(node, index, init);
 
-				}	else {
-					init.conditionsOnG[nodestate] = SAModel?
-							new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[node.getNr()][nodestate]/(1-rho[nodestate*totalIntervals+index])*(1-r[nodestate * totalIntervals + index]))
-									*rho[nodestate*totalIntervals+index])  :
-							new SmallNumber(rho[nodestate*totalIntervals+index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
-				}
-
-			}
 			if (print) System.out.println("Sampling at time " + (T-to));
 
-			return getG(from, init, to, PG, node);
+			nodePartials[node.getNr()] = memoizeTipBranchesInput.get() ?
+					getTipBranchG(from, init, to, PG, node.getNr(), getNodeState(node, false)) : getG(from, init, to, PG, node);
+			return nodePartials[node.getNr()];
 		}
 
 
@@ -302,23 +478,7 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 				p0ge_InitialConditions g = calculateSubtreeLikelihood(node.getChild(childIndex), to, T - node.getChild(childIndex).getHeight(), PG);
 
-				int saNodeState = getNodeState(node.getChild(childIndex ^ 1), false); // get state of direct ancestor, XOR operation gives 1 if childIndex is 0 and vice versa
-
-				if (!isRhoTip[node.getChild(childIndex ^ 1).getNr()]) {
-
-					init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState];
-					init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(psi[saNodeState * totalIntervals + index]
-							* (1-r[saNodeState * totalIntervals + index]));
-
-//					System.out.println("SA but not rho sampled");
-
-				} else {
-					// TODO COME BACK AND CHANGE (can be dealt with with getAllPInitialConds)
-					init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState]*(1-rho[saNodeState*totalIntervals+index]) ;
-					init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(rho[saNodeState*totalIntervals+index]
-							* (1-r[saNodeState * totalIntervals + index]));
-
-				}
+				setSampledAncestorConditions(node.getChild(childIndex ^ 1), g, index, init); // XOR operation gives 1 if childIndex is 0 and vice versa
 			}
 
 			else {   // birth / infection event
@@ -330,27 +490,22 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 				int indexSecondChild = Math.abs(indexFirstChild-1);
 
 				//TODO refactor with more explicit names
-				p0ge_InitialConditions g0 = new p0ge_InitialConditions();
-				p0ge_InitialConditions g1 = new p0ge_InitialConditions();
+				p0ge_InitialConditions g0;
+				p0ge_InitialConditions g1;
 
 				// evaluate if the next step in the traversal should be split between one new thread and the currrent thread and run in parallel.
 
 				if(isParallelizedCalculation
+						&& isDirtyNode[node.getChild(indexFirstChild).getNr()] && isDirtyNode[node.getChild(indexSecondChild).getNr()]
 						&& weightOfNodeSubTree[node.getChild(indexFirstChild).getNr()] >  parallelizationThreshold
 						&& weightOfNodeSubTree[node.getChild(indexSecondChild).getNr()] > parallelizationThreshold){
 
-					try {
-						// start a new thread to take care of the second subtree
-						Future<p0ge_InitialConditions> secondChildTraversal = pool.submit(
-								new TraversalServiceUncoloured(node.getChild(indexSecondChild), to, T - node.getChild(indexSecondChild).getHeight()));
-
-						g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, T - node.getChild(indexFirstChild).getHeight(), PG);
-						g1 = secondChildTraversal.get();
+					// let another thread take care of the second subtree, exceptions are rethrown by join()
+					TraversalServiceUncoloured secondChildTraversal = new TraversalServiceUncoloured(node.getChild(indexSecondChild), to, T - node.getChild(indexSecondChild).getHeight());
+					forkTraversal(secondChildTraversal);
 
-					} catch (Exception e) {
-						e.printStackTrace();
-						//TODO deal with exceptions properly, maybe do the traversal serially if something failed.
-					}
+					g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, T - node.getChild(indexFirstChild).getHeight(), PG);
+					g1 = secondChildTraversal.join();
 				} else {
 					g0 = calculateSubtreeLikelihood(node.getChild(indexFirstChild), to, T - node.getChild(indexFirstChild).getHeight(), PG);
 					g1 = calculateSubtreeLikelihood(node.getChild(indexSecondChild), to, T - node.getChild(indexSecondChild).getHeight(), PG);
@@ -361,30 +516,7 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 					System.out.println("Infection at time " + (T - to));//+ " with p = " + p + "\tg0 = " + g0 + "\tg1 = " + g1);
 
 
-				for (int childstate = 0; childstate < n; childstate++) {
-
-					if (print) {
-						System.out.println("state " + childstate + "\t p0 = " + g0.conditionsOnP[childstate] + "\t p1 = " + g1.conditionsOnP[childstate]);
-						System.out.println("\t\t g0 = " + g0.conditionsOnG[childstate] + "\t g1 = " + g1.conditionsOnG[childstate]);
-					}
-
-					init.conditionsOnP[childstate] = g0.conditionsOnP[childstate];
-					init.conditionsOnG[childstate] = SmallNumber.multiply(g0.conditionsOnG[childstate], g1.conditionsOnG[childstate]).scalarMultiply(birth[childstate * totalIntervals + index]);
-
-					if (birthAmongDemes) {
-						for (int j = 0; j < n; j++) {
-							if (childstate != j) {
-								init.conditionsOnG[childstate] = SmallNumber.add(init.conditionsOnG[childstate], SmallNumber.add(SmallNumber.multiply(g0.conditionsOnG[childstate], g1.conditionsOnG[j]) , SmallNumber.multiply(g0.conditionsOnG[j], g1.conditionsOnG[childstate]))
-										.scalarMultiply(0.5 * b_ij[totalIntervals * (childstate * (n - 1) + (j < childstate ? j : j - 1)) + index]));
-							}
-						}
-
-					}
-
-					if (Double.isInfinite(init.conditionsOnP[childstate])) {
-						throw new RuntimeException("infinite likelihood");
-					}
-				}
+				combineChildren(g0, g1, index, init);
 			}
 		}
 
@@ -401,10 +533,542 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 			System.out.println();
 		}
 
-		return getG(from, init, to, PG, node);
+		nodePartials[node.getNr()] = getG(from, init, to, PG, node);
+		return nodePartials[node.getNr()];
+	}
+
+
+	/**
+	 * Set the initial conditions at a sampled ancestor
+	 * @param directAncestor leaf of zero length representing the sampled ancestor
+	 * @param g partials of the other child, at the time of the sampled ancestor
+	 * @param index rate interval of the sampling time
+	 * @param init initial conditions of the branch above the sampled ancestor
+	 */
+	void setSampledAncestorConditions(Node directAncestor, p0ge_InitialConditions g, int index, p0ge_InitialConditions init) {
+
+		// get state of direct ancestor
+		setSampledAncestorConditions(directAncestor.getNr(), getNodeState(directAncestor, false), g, index, init);
+	}
+
+	/**
+	 * Set the initial conditions at a sampled ancestor
+	 * @param nr number of the leaf of zero length representing the sampled ancestor
+	 * @param saNodeState type of the sampled ancestor
+	 * @param g partials of the other child, at the time of the sampled ancestor
+	 * @param index rate interval of the sampling time
+	 * @param init initial conditions of the branch above the sampled ancestor
+	 */
+	void setSampledAncestorConditions(int nr, int saNodeState, p0ge_InitialConditions g, int index, p0ge_InitialConditions init) {
+
+		if (!isRhoTip[nr]) {
+
+			init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState];
+			init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(psi[saNodeState * totalIntervals + index]
+					* (1-r[saNodeState * totalIntervals + index]));
+
+		} else {
+			// TODO COME BACK AND CHANGE (can be dealt with with getAllPInitialConds)
+			init.conditionsOnP[saNodeState] = g.conditionsOnP[saNodeState]*(1-rho[saNodeState*totalIntervals+index]) ;
+			init.conditionsOnG[saNodeState] = g.conditionsOnG[saNodeState].scalarMultiply(rho[saNodeState*totalIntervals+index]
+					* (1-r[saNodeState * totalIntervals + index]));
+
+		}
+	}
+
+	/**
+	 * Mark the nodes whose partials need to be recomputed as updateDirtyNodes does, with a loop over the flattened tree
+	 * @param updateAll if true, all nodes are marked
+	 */
+	void updateDirtyNodesIterative(boolean updateAll) {
+
+		FlattenedTree flat = flattenedTree;
+
+		for (int k = 0; k < flat.nodeCount; k++) {
+
+			int nr = flat.postOrder[k];
+
+			boolean isDirty = updateAll || flat.isChanged[nr] || (nodePartials[nr] == null && !flat.isDirectAncestor[nr]);
+
+			if (flat.firstChild[nr] >= 0 && isDirtyNode[flat.firstChild[nr]]) isDirty = true;
+			if (flat.secondChild[nr] >= 0 && isDirtyNode[flat.secondChild[nr]]) isDirty = true;
+
+			isDirtyNode[nr] = isDirty;
+		}
+	}
+
+	/**
+	 * Compute the partials of all dirty nodes with a loop over the flattened tree in post order, without recursion.
+	 * The partials are the same as those of calculateSubtreeLikelihood, they are stored in nodePartials and the nodes
+	 * are marked clean, so that the calls of calculateSubtreeLikelihood in calculateTreeLogLikelihood only read them.
+	 * If the origin is on the root (orig <= 0), the root is left to calculateTreeLogLikelihood.
+	 */
+	void calculateSubtreeLikelihoodsIterative() {
+
+		FlattenedTree flat = flattenedTree;
+
+		for (int k = 0; k < flat.nodeCount; k++) {
+
+			int nr = flat.postOrder[k];
+
+			if (!isDirtyNode[nr] || flat.isDirectAncestor[nr]) continue;
+			if (nr == flat.root && orig <= 0) continue;
+
+			int parent = flat.parent[nr];
+
+			// same start and end times as in the recursion
+			double to = (nr == flat.root) ? orig : T - flat.heights[nr];
+			double from;
+			if (parent < 0 || (parent == flat.root && orig <= 0))
+				from = 0.;
+			else
+				from = (parent == flat.root) ? orig : T - flat.heights[parent];
+
+			double[] pconditions = new double[n];
+			SmallNumber[] gconditions = new SmallNumber[n];
+			for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
+
+			p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
+
+			int index = Utils.index(to, times, totalIntervals);
+
+			if (flat.isLeaf[nr]) {
+
+				setLeafConditions(nr, flat.types[nr], index, init);
+
+				nodePartials[nr] = memoizeTipBranchesInput.get() ? getTipBranchG(from, init, to, PG, nr, flat.types[nr]) : getLeafG(from, init, to, PG, nr);
+
+			} else {
+
+				int first = flat.firstChild[nr];
+				int second = flat.secondChild[nr];
+
+				if (second < 0)
+					throw new RuntimeException("Error: Single child-nodes found (although not using sampled ancestors)");
+
+				if (flat.isDirectAncestor[first] || flat.isDirectAncestor[second]) {
+
+					if (r==null)
+						throw new ConstraintViolatedException("Error: Sampled ancestor found, but removalprobability not specified!");
+
+					int child = flat.isDirectAncestor[first] ? second : first;
+					int directAncestor = (child == first) ? second : first;
+					setSampledAncestorConditions(directAncestor, flat.types[directAncestor], nodePartials[child], index, init);
+
+				} else {
+
+					// always start with the same child to avoid numerical differences, as in calculateSubtreeLikelihood
+					if (second > first) {
+						int tmp = first;
+						first = second;
+						second = tmp;
+					}
+
+					combineChildren(nodePartials[first], nodePartials[second], index, init);
+				}
+
+				nodePartials[nr] = getG(from, init, to, PG);
+			}
+
+			isDirtyNode[nr] = false;
+		}
+	}
+
+	/**
+	 * Integrate the branch above a tip, reusing the results of the tips with the same type and sampling time
+	 * integrated before in this evaluation: the whole branch if it ends at the same time, otherwise the segment up to
+	 * the first change time above the tip. The results are the same as those of getG.
+	 * @param from
+	 * @param init initial conditions at the tip
+	 * @param to sampling time of the tip
+	 * @param PG
+	 * @param nr number of the leaf
+	 * @param state type of the leaf
+	 * @return
+	 */
+	p0ge_InitialConditions getTipBranchG(double from, p0ge_InitialConditions init, double to, p0ge_ODE PG, int nr, int state) {
+
+		boolean rhoTip = isRhoTip[nr];
+
+		TipBranchKey key = new TipBranchKey(state, rhoTip, to, from);
+		p0ge_InitialConditions result = tipBranchMemo.get(key);
+		if (result != null) return result;
+
+		// first change time above the tip, strictly inside the branch
+		int boundaryIndex = totalIntervals - 1;
+		while (boundaryIndex >= 0 && times[boundaryIndex] >= to - globalPrecisionThreshold) boundaryIndex--;
+
+		if (boundaryIndex >= 0 && times[boundaryIndex] > from + globalPrecisionThreshold) {
+
+			double boundary = times[boundaryIndex];
+
+			TipBranchKey segmentKey = new TipBranchKey(state, rhoTip, to, boundary);
+			p0ge_InitialConditions segment = tipBranchMemo.get(segmentKey);
+			if (segment == null) {
+				segment = getLeafG(boundary, init, to, PG, nr);
+				tipBranchMemo.put(segmentKey, segment);
+			}
+
+			// continue from the change time as getG does, after the rho sampling at that time
+			double[] pConditions = segment.conditionsOnP.clone();
+			SmallNumber[] geConditions = segment.conditionsOnG.clone();
+			if (rhoChanges > 0) {
+				for (int i = 0; i < n; i++) {
+					double oneMinusRho = 1 - rho[i * totalIntervals + boundaryIndex];
+					pConditions[i] *= oneMinusRho;
+					geConditions[i] = geConditions[i].scalarMultiply(oneMinusRho);
+				}
+			}
+
+			result = getG(from, new p0ge_InitialConditions(pConditions, geConditions), boundary, PG);
+
+		} else {
+			result = getLeafG(from, init, to, PG, nr);
+		}
+
+		tipBranchMemo.put(key, result);
+
+		return result;
+	}
+
+	/**
+	 * Type, rho sampling and time of a tip, and the end time of its branch (or branch segment).
+	 * Tips with the same key have the same initial conditions, so their branches give the same result.
+	 */
+	static class TipBranchKey {
+
+		final int state;
+		final boolean rhoTip;
+		final double to;
+		final double from;
+
+		TipBranchKey(int state, boolean rhoTip, double to, double from) {
+			this.state = state;
+			this.rhoTip = rhoTip;
+			this.to = to;
+			this.from = from;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TipBranchKey)) return false;
+			TipBranchKey other = (TipBranchKey) o;
+			return state == other.state && rhoTip == other.rhoTip
+					&& Double.compare(to, other.to) == 0 && Double.compare(from, other.from) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * (31 * state + (rhoTip ? 1 : 0)) + Double.hashCode(to)) + Double.hashCode(from);
+		}
+	}
+
+	/**
+	 * Set the initial conditions on ge at a sampled tip
+	 * @param node leaf
+	 * @param index rate interval of the sampling time
+	 * @param init initial conditions, ge is set to zero in all states except the sampled one(s)
+	 */
+	void setLeafConditions(Node node, int index, p0ge_InitialConditions init) {
+
+		setLeafConditions(node.getNr(), getNodeState(node, false), index, init);
+	}
+
+	/**
+	 * Set the initial conditions on ge at a sampled tip
+	 * @param nr number of the leaf
+	 * @param nodestate type of the leaf, -1 if unknown
+	 * @param index rate interval of the sampling time
+	 * @param init initial conditions, ge is set to zero in all states except the sampled one(s)
+	 */
+	void setLeafConditions(int nr, int nodestate, int index, p0ge_InitialConditions init) {
+
+		if (nodestate==-1) { //unknown state
+
+			if (SAModel)
+				throw new ConstraintViolatedException("SA model not implemented with unknown states!");
+
+			for (int i=0; i<n; i++) {
+
+				if (!isRhoTip[nr]) {
+					init.conditionsOnG[i] = new SmallNumber(psi[i * totalIntervals + index]);
+				}
+				else
+					init.conditionsOnG[i] = new SmallNumber(rho[i*totalIntervals+index]);
+			}
+		}
+		else {
+
+			if (!isRhoTip[nr]) {
+
+				init.conditionsOnG[nodestate] = SAModel?
+						new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[nr][nodestate]*(1-r[nodestate * totalIntervals + index]))
+								*psi[nodestate * totalIntervals + index]) // with SA: ψ_i(r + (1 − r)p_i(τ))
+						: new SmallNumber(psi[nodestate * totalIntervals + index]);
+
+			}	else {
+				init.conditionsOnG[nodestate] = SAModel?
+						new SmallNumber((r[nodestate * totalIntervals + index] + pInitialConditions[nr][nodestate]/(1-rho[nodestate*totalIntervals+index])*(1-r[nodestate * totalIntervals + index]))
+								*rho[nodestate*totalIntervals+index])  :
+						new SmallNumber(rho[nodestate*totalIntervals+index]); // rho-sampled leaf in the past: ρ_i(τ)(r + (1 − r)p_i(τ+δ)) //the +δ is translated by dividing p_i with 1-ρ_i (otherwise there's one too many "*ρ_i" )
+			}
+
+		}
+	}
+
+	/**
+	 * Combine the partials of the two children of a birth event into the initial conditions of the parent branch
+	 * @param g0 partials of the first child
+	 * @param g1 partials of the second child
+	 * @param index rate interval of the birth event
+	 * @param init initial conditions of the parent branch
+	 */
+	void combineChildren(p0ge_InitialConditions g0, p0ge_InitialConditions g1, int index, p0ge_InitialConditions init) {
+
+		long start = (statistics != null) ? System.nanoTime() : 0;
+
+		// the products of the children partials are accumulated in place, in the buffer of this thread
+		SmallNumberVector combinedG = workspaces.get().getCombinationBuffer(n);
+
+		for (int childstate = 0; childstate < n; childstate++) {
+
+			if (print) {
+				System.out.println("state " + childstate + "\t p0 = " + g0.conditionsOnP[childstate] + "\t p1 = " + g1.conditionsOnP[childstate]);
+				System.out.println("\t\t g0 = " + g0.conditionsOnG[childstate] + "\t g1 = " + g1.conditionsOnG[childstate]);
+			}
+
+			init.conditionsOnP[childstate] = g0.conditionsOnP[childstate];
+			combinedG.setProduct(childstate, g0.conditionsOnG[childstate], g1.conditionsOnG[childstate], birth[childstate * totalIntervals + index]);
+
+			if (birthAmongDemes) {
+				for (int j = 0; j < n; j++) {
+					if (childstate != j) {
+						combinedG.addProductSum(childstate, g0.conditionsOnG[childstate], g1.conditionsOnG[j], g0.conditionsOnG[j], g1.conditionsOnG[childstate],
+								0.5 * b_ij[totalIntervals * (childstate * (n - 1) + (j < childstate ? j : j - 1)) + index]);
+					}
+				}
+
+			}
+
+			init.conditionsOnG[childstate] = combinedG.get(childstate);
+
+			if (Double.isInfinite(init.conditionsOnP[childstate])) {
+				throw new RuntimeException("infinite likelihood");
+			}
+		}
+
+		if (statistics != null) statistics.addTimeSince(Counter.COMBINATION_TIME, start);
 	}
 
 
+	/**
+	 * Compute the partials of all dirty nodes in a single sweep from the present (T) to the origin (0).
+	 * Between two consecutive events (a branch starting or ending, or a change time), the ge equations of all lineages
+	 * alive at that time are integrated together as one ODE system, with p0 read from the shared solution.
+	 * The partials are stored in nodePartials and the nodes are marked clean, so that calculateSubtreeLikelihood returns them.
+	 * If the origin is on the root (orig <= 0), the branches below the root are computed but not combined.
+	 * @param tree
+	 */
+	void calculateSubtreeLikelihoodsBatched(TreeInterface tree) {
+
+		Node root = tree.getRoot();
+
+		// dirty nodes in post order, sorted by height (the sort is stable, so children come before their parents at equal heights)
+		List<Node> lineageNodes = new ArrayList<>();
+		collectDirtyNodes(root, lineageNodes);
+		if (orig <= 0) lineageNodes.remove(root);
+		lineageNodes.sort(Comparator.comparingDouble(Node::getHeight));
+
+		int count = lineageNodes.size();
+		if (count == 0) return;
+
+		long sweepStart = (statistics != null) ? System.nanoTime() : 0;
+
+		// tolerances as in integrateAdaptive
+		double relativeToleranceConstant = relativeTolerance.get();
+		double absoluteToleranceConstant = absoluteTolerance.get();
+
+		// lineages being integrated: node, end time, scaling factor and scaled ge values (n values per lineage)
+		Node[] alive = new Node[count];
+		double[] aliveEnd = new double[count];
+		int[] aliveFactor = new int[count];
+		double[] ge = new double[count * n];
+		int aliveCount = 0;
+
+		IntegrationWorkspace workspace = workspaces.get();
+		p0ge_ODE PG = workspace.getODE();
+
+		int next = 0;
+		int epoch = 0;
+		double t = T - lineageNodes.get(0).getHeight();
+
+		try {
+
+			while (true) {
+
+				// lineages ending at t
+				for (int k = 0; k < aliveCount; ) {
+
+					if (aliveEnd[k] > t - globalPrecisionThreshold) {
+
+						double[] equation = new double[2 * n];
+						pDenseOutput.getP(aliveEnd[k], epoch, equation);
+						System.arraycopy(ge, k * n, equation, n, n);
+
+						int nr = alive[k].getNr();
+						nodePartials[nr] = SmallNumberScaler.unscale(equation, aliveFactor[k]);
+						isDirtyNode[nr] = false;
+
+						// the last lineage takes the place of the finished one
+						aliveCount--;
+						alive[k] = alive[aliveCount];
+						aliveEnd[k] = aliveEnd[aliveCount];
+						aliveFactor[k] = aliveFactor[aliveCount];
+						System.arraycopy(ge, aliveCount * n, ge, k * n, n);
+
+					} else k++;
+				}
+
+				// lineages starting at t
+				while (next < count && T - lineageNodes.get(next).getHeight() > t - globalPrecisionThreshold) {
+
+					Node node = lineageNodes.get(next++);
+					double start = T - node.getHeight();
+					double end = node.isRoot() ? 0. : T - node.getParent().getHeight();
+
+					p0ge_InitialConditions init = getBranchInitialConditions(node, start);
+
+					// nothing to integrate, as in getG
+					if (Math.abs(T - end) < globalPrecisionThreshold || Math.abs(start - end) < globalPrecisionThreshold) {
+						nodePartials[node.getNr()] = init;
+						isDirtyNode[node.getNr()] = false;
+						continue;
+					}
+
+					ScaledNumbers scaled = scale(init);
+					alive[aliveCount] = node;
+					aliveEnd[aliveCount] = end;
+					aliveFactor[aliveCount] = scaled.getScalingFactor();
+					System.arraycopy(scaled.getEquation(), n, ge, aliveCount * n, n);
+					aliveCount++;
+				}
+
+				if (aliveCount == 0) {
+					if (next == count) break;
+					t = T - lineageNodes.get(next).getHeight();
+					continue;
+				}
+
+				// next event below t
+				double stop = (next < count) ? T - lineageNodes.get(next).getHeight() : 0.;
+				for (int k = 0; k < aliveCount; k++) stop = Math.max(stop, aliveEnd[k]);
+
+				epoch = Utils.indexIntervalBelow(t, times, totalIntervals, globalPrecisionThreshold);
+
+				int changeIndex = -1;
+				if (epoch > 0 && times[epoch - 1] > stop - globalPrecisionThreshold) {
+					stop = times[epoch - 1];
+					changeIndex = epoch - 1;
+				}
+
+				// long slices are split, as in safeIntegrate
+				double sliceEnd = stop;
+				while (T > 0 && t - sliceEnd > T / 6) sliceEnd = t - (t - sliceEnd) / 2;
+				if (sliceEnd != stop) {
+					changeIndex = -1;
+					if (statistics != null) statistics.increment(Counter.INTERVAL_SPLITS);
+				}
+
+				int dimension = aliveCount * n;
+				workspace.ensureDimension(dimension);
+
+				for (int i = 0; i < dimension; i++) {
+					workspace.absoluteToleranceVector[i] = (ge[i] > 0) ? Math.max(1e-310, ge[i] * absoluteToleranceConstant) : absoluteToleranceConstant;
+					workspace.relativeToleranceVector[i] = relativeToleranceConstant;
+				}
+
+				System.arraycopy(ge, 0, workspace.state, 0, dimension);
+
+				PG.setLineages(aliveCount);
+				PG.setEpoch(epoch);
+
+				AdaptiveStepsizeIntegrator integrator = workspace.getIntegrator();
+				integrator.setStepSizeControl(minstep, maxstep, workspace.absoluteToleranceVector, workspace.relativeToleranceVector);
+				integrator.integrate(PG, t, workspace.state, sliceEnd, workspace.state);
+
+				System.arraycopy(workspace.state, 0, ge, 0, dimension);
+
+				for (int k = 0; k < aliveCount; k++) {
+
+					// keep the scaled values in the range of doubles, as in propagate
+					double max = 0.;
+					for (int i = k * n; i < (k + 1) * n; i++) max = Math.max(max, Math.abs(ge[i]));
+
+					if (max > 0. && Math.getExponent(max) < -200) {
+						int shift = -Math.getExponent(max);
+						for (int i = k * n; i < (k + 1) * n; i++) ge[i] = SmallNumberScaler.multiplyByPowerOfTwo(ge[i], shift);
+						aliveFactor[k] += shift;
+						if (statistics != null) statistics.increment(Counter.RESCALINGS);
+					}
+
+					// rho sampling at the change time, lineages ending there are not sampled (as in getG)
+					if (changeIndex >= 0 && rhoChanges > 0 && aliveEnd[k] < sliceEnd - globalPrecisionThreshold) {
+						for (int i = 0; i < n; i++) ge[k * n + i] *= 1 - rho[i * totalIntervals + changeIndex];
+					}
+				}
+
+				t = sliceEnd;
+			}
+
+		} finally {
+			PG.setLineages(1);
+		}
+
+		if (statistics != null) statistics.addTimeSince(Counter.BRANCH_TIME, sweepStart);
+	}
+
+	/**
+	 * Collect the dirty nodes of the subtree in post order
+	 * @param node
+	 * @param nodes
+	 */
+	void collectDirtyNodes(Node node, List<Node> nodes) {
+
+		for (Node child : node.getChildren()) collectDirtyNodes(child, nodes);
+
+		if (isDirtyNode[node.getNr()]) nodes.add(node);
+	}
+
+	/**
+	 * Initial conditions at the lower end (start time) of the branch above node, the partials of the children must be known
+	 * @param node
+	 * @param to start time of the branch
+	 * @return
+	 */
+	p0ge_InitialConditions getBranchInitialConditions(Node node, double to) {
+
+		double[] pconditions = new double[n];
+		SmallNumber[] gconditions = new SmallNumber[n];
+		for (int i=0; i<n; i++) gconditions[i] = new SmallNumber();
+
+		p0ge_InitialConditions init = new p0ge_InitialConditions(pconditions, gconditions);
+
+		int index = Utils.index(to,times, totalIntervals);
+
+		if (node.isLeaf()) {
+			setLeafConditions(node, index, init);
+			System.arraycopy(pInitialConditions[node.getNr()], 0, init.conditionsOnP, 0, n);
+		} else {
+			int indexFirstChild = 0;
+			if (node.getChild(1).getNr() > node.getChild(0).getNr())
+				indexFirstChild = 1; // always start with the same child to avoid numerical differences
+
+			combineChildren(nodePartials[node.getChild(indexFirstChild).getNr()], nodePartials[node.getChild(1 - indexFirstChild).getNr()], index, init);
+		}
+
+		return init;
+	}
+
 	// used to indicate that the state assignment went wrong
 	protected class ConstraintViolatedException extends RuntimeException {
 		private static final long serialVersionUID = 1L;
@@ -428,6 +1092,13 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 		}
 
+		if (statistics != null) {
+			if (parallelizationTuner != null)
+				out.print(getID() + ".parallelizationFactor\t");
+			for (Counter counter : Counter.values())
+				out.print(getID() + "." + counter.getLabel() + "\t");
+		}
+
 	}
 
 	@Override
@@ -441,12 +1112,25 @@ public class BirthDeathMigrationModelUncoloured extends PiecewiseBirthDeathMigra
 
 			}
 		}
+
+		// counts since the last log, times in ms
+		if (statistics != null) {
+			// factor chosen by the tuner, for the next evaluation
+			if (parallelizationTuner != null)
+				out.print(parallelizationTuner.getFactor() + "\t");
+			for (Counter counter : Counter.values()) {
+				long value = statistics.getAndReset(counter);
+				if (counter.isTime()) out.print(value * 1e-6 + "\t");
+				else out.print(value + "\t");
+			}
+		}
 	}
 
 	class TraversalServiceUncoloured extends TraversalService {
+		private static final long serialVersionUID = 1L;
 
 		public TraversalServiceUncoloured(Node root, double from, double to) {
-			super(root, from, to, false);
+			super(root, from, to);
 		}
 
 		@Override
@@ -0,0 +1,57 @@
+package beast.evolution.speciation;
+
+import beast.math.distributions.ParametricDistribution;
+import org.apache.commons.math.MathException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverse cumulative probabilities of the rate distribution of the clusters, by quantile value.
+ * A cache is shared by all clusters of a BirthDeathMigrationClusterSetUncoloured, whose likelihoods are computed
+ * by several threads at once. Only values of the accepted distribution are kept: the cache is emptied and bypassed
+ * while the distribution is dirty, so that a rejected proposal on its parameters leaves nothing behind.
+ */
+class ClusterRateCache {
+
+	// the cache is emptied when it grows beyond this size, old quantile values are not proposed again
+	final static int maxSize = 10000;
+
+	final Map<Double, Double> rates = new ConcurrentHashMap<>();
+
+
+	/**
+	 * @param distribution
+	 * @param quantile
+	 * @param distributionChanged true if the parameters of the distribution may have changed since the last accepted state
+	 * @return the inverse cumulative probability of the quantile
+	 */
+	double getRate(ParametricDistribution distribution, double quantile, boolean distributionChanged) {
+
+		if (distributionChanged) {
+			rates.clear();
+			return inverseCumulativeProbability(distribution, quantile);
+		}
+
+		Double rate = rates.get(quantile);
+		if (rate == null) {
+			rate = inverseCumulativeProbability(distribution, quantile);
+			if (rates.size() >= maxSize) rates.clear();
+			rates.put(quantile, rate);
+		}
+
+		return rate;
+	}
+
+	static double inverseCumulativeProbability(ParametricDistribution distribution, double quantile) {
+
+		// the distribution may build its underlying implementation lazily, which is not thread-safe
+		synchronized (distribution) {
+			try {
+				return distribution.inverseCumulativeProbability(quantile);
+			} catch (MathException e) {
+				throw new RuntimeException("Failed to compute inverse cumulative probability!");
+			}
+		}
+	}
+}
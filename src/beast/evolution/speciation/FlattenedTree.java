@@ -0,0 +1,93 @@
+package beast.evolution.speciation;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.TreeInterface;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Structure of a binary tree stored in arrays indexed by node number, filled once per evaluation without recursion.
+ * The likelihood can then be computed by looping over the post order instead of recursing over the Node objects,
+ * which is safe for very deep (ladder-shaped) trees.
+ */
+class FlattenedTree {
+
+	int nodeCount;
+	int root;
+
+	// node numbers, children before their parents
+	int[] postOrder;
+
+	// -1 for the root and for the leaves
+	int[] parent;
+	int[] firstChild;
+	int[] secondChild;
+
+	double[] heights;
+	boolean[] isLeaf;
+	boolean[] isDirectAncestor;
+
+	// true if the node or the branch above it changed since the last accepted state
+	boolean[] isChanged;
+
+	// types of the leaves (-1 if unknown), not set for the internal nodes
+	int[] types;
+
+	// explicit stack used to build the post order
+	int[] stack;
+
+
+	/**
+	 * Fill the arrays from the tree, the arrays are only allocated again if the number of nodes changed
+	 * @param tree
+	 * @param leafType type of a leaf
+	 */
+	void update(TreeInterface tree, ToIntFunction<Node> leafType) {
+
+		if (postOrder == null || nodeCount != tree.getNodeCount()) {
+			nodeCount = tree.getNodeCount();
+			postOrder = new int[nodeCount];
+			parent = new int[nodeCount];
+			firstChild = new int[nodeCount];
+			secondChild = new int[nodeCount];
+			heights = new double[nodeCount];
+			isLeaf = new boolean[nodeCount];
+			isDirectAncestor = new boolean[nodeCount];
+			isChanged = new boolean[nodeCount];
+			types = new int[nodeCount];
+			stack = new int[nodeCount];
+		}
+
+		for (Node node : tree.getNodesAsArray()) {
+
+			int nr = node.getNr();
+
+			heights[nr] = node.getHeight();
+			isLeaf[nr] = node.isLeaf();
+			if (isLeaf[nr]) types[nr] = leafType.applyAsInt(node);
+			isDirectAncestor[nr] = node.isDirectAncestor();
+			isChanged[nr] = node.isDirty() != Tree.IS_CLEAN;
+			parent[nr] = node.isRoot() ? -1 : node.getParent().getNr();
+			firstChild[nr] = (node.getChildCount() > 0) ? node.getChild(0).getNr() : -1;
+			secondChild[nr] = (node.getChildCount() > 1) ? node.getChild(1).getNr() : -1;
+		}
+
+		root = tree.getRoot().getNr();
+
+		// the nodes are taken from the stack before their children and stored from the end of the array,
+		// so that all children come before their parents
+		int size = 0;
+		int count = nodeCount;
+		stack[size++] = root;
+
+		while (size > 0) {
+
+			int nr = stack[--size];
+			postOrder[--count] = nr;
+
+			if (firstChild[nr] >= 0) stack[size++] = firstChild[nr];
+			if (secondChild[nr] >= 0) stack[size++] = secondChild[nr];
+		}
+	}
+}
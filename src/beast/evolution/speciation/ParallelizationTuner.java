@@ -0,0 +1,133 @@
+package beast.evolution.speciation;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the parallelization factor from the measured duration of the tree traversals.
+ * The candidate factors are scaled by the number of threads, and each candidate is used for a number of evaluations
+ * in turn. The candidate with the lowest traversal time per integrated branch is then kept, until the shape of the tree
+ * changes substantially, which is measured by the number of nodes at which the traversal could fork.
+ */
+class ParallelizationTuner {
+
+	// the subtrees are never evaluated in parallel
+	final static double SEQUENTIAL = Double.POSITIVE_INFINITY;
+
+	final static int defaultEvaluationsPerCandidate = 20;
+
+	double[] candidates;
+	int evaluationsPerCandidate;
+
+	// total duration (in ns) and number of integrated branches of the evaluations of each candidate
+	long[] durations;
+	long[] branches;
+	int[] evaluations;
+
+	// index of the candidate in use, candidates.length once the tuning is finished
+	int current;
+	double factor;
+
+	// number of forks at the finest candidate factor when the tuning finished
+	int referenceForkCount;
+
+
+	/**
+	 * @param threads number of threads of the pool
+	 * @param evaluationsPerCandidate number of evaluations with branches to integrate used to measure each candidate
+	 */
+	ParallelizationTuner(int threads, int evaluationsPerCandidate) {
+
+		this.evaluationsPerCandidate = evaluationsPerCandidate;
+
+		// the children of a node cannot both weigh more than half of the tree
+		double[] factors = new double[]{1. / (8 * threads), 1. / (4 * threads), 1. / (2 * threads), 1. / threads, 2. / threads};
+		int count = 0;
+		while (count < factors.length && factors[count] < 0.5) count++;
+
+		candidates = Arrays.copyOf(factors, count + 1);
+		candidates[count] = SEQUENTIAL;
+
+		durations = new long[candidates.length];
+		branches = new long[candidates.length];
+		evaluations = new int[candidates.length];
+
+		restart();
+	}
+
+	/**
+	 * Measure all candidates again
+	 */
+	void restart() {
+
+		Arrays.fill(durations, 0);
+		Arrays.fill(branches, 0);
+		Arrays.fill(evaluations, 0);
+
+		current = 0;
+		factor = candidates[0];
+		referenceForkCount = -1;
+	}
+
+	boolean isTuning() {
+		return current < candidates.length;
+	}
+
+	/**
+	 * @return the parallelization factor to use for the next evaluation
+	 */
+	double getFactor() {
+		return factor;
+	}
+
+	/**
+	 * @return the factor at which the fork count describing the shape of the tree is measured
+	 */
+	double getReferenceFactor() {
+		return candidates[0];
+	}
+
+	/**
+	 * Add the duration of a traversal done with the current factor
+	 * @param duration in ns
+	 * @param integratedBranches number of branches integrated during the traversal, evaluations without any are ignored
+	 */
+	void record(long duration, int integratedBranches) {
+
+		if (!isTuning() || integratedBranches == 0) return;
+
+		durations[current] += duration;
+		branches[current] += integratedBranches;
+		evaluations[current]++;
+
+		if (evaluations[current] < evaluationsPerCandidate) return;
+
+		current++;
+
+		if (isTuning()) {
+			factor = candidates[current];
+			return;
+		}
+
+		int best = 0;
+		for (int i = 1; i < candidates.length; i++) {
+			if (durations[i] / (double) branches[i] < durations[best] / (double) branches[best]) best = i;
+		}
+		factor = candidates[best];
+	}
+
+	/**
+	 * Start the tuning again if the shape of the tree changed substantially since the last tuning
+	 * @param forkCount number of nodes whose two children weigh more than the reference factor times the tree weight
+	 */
+	void checkShape(int forkCount) {
+
+		if (isTuning()) return;
+
+		if (referenceForkCount < 0) {
+			referenceForkCount = forkCount;
+			return;
+		}
+
+		if (Math.abs(forkCount - referenceForkCount) > Math.max(2, referenceForkCount / 2)) restart();
+	}
+}
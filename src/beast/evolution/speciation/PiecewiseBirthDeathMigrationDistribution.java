@@ -9,28 +9,37 @@ import beast.core.parameter.RealParameter;
 import beast.core.util.Utils;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.TreeInterface;
+import beast.math.IntegrationStatistics;
+import beast.math.RosenbrockIntegrator;
 import beast.math.ScaledNumbers;
 import beast.math.SmallNumber;
 import beast.math.SmallNumberScaler;
+import beast.math.SmallNumberVector;
+import beast.math.p0_DenseOutput;
 import beast.math.p0_ODE;
+import beast.math.p0ge_Analytical;
 import beast.math.p0ge_InitialConditions;
 import beast.math.p0ge_ODE;
-import beast.util.HeapSort;
-import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import beast.math.ge_Propagators;
+import beast.math.IntegrationStatistics.Counter;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
 import org.apache.commons.math3.ode.nonstiff.ClassicalRungeKuttaIntegrator;
 import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.apache.commons.math3.ode.nonstiff.HighamHall54Integrator;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 
 /**
@@ -191,6 +200,40 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	public Input<Boolean> useRKInput =
 			new Input<>("useRK", "Use fixed step size Runge-Kutta integrator with 1000 steps. Default false", false);
 
+	public enum IntegratorType {DORMANDPRINCE54, DORMANDPRINCE853, HIGHAMHALL54, ROSENBROCK, AUTO}
+
+	public Input<IntegratorType> integratorInput =
+			new Input<>("integrator", "Adaptive integrator of the ODEs, with the tolerances relTolerance and absTolerance: DORMANDPRINCE54, DORMANDPRINCE853, HIGHAMHALL54, " +
+					"ROSENBROCK (linearly implicit, for stiff equations, e.g. with migration rates much higher than the other rates) " +
+					"or AUTO (ROSENBROCK if the current rates make the equations stiff, DORMANDPRINCE54 otherwise). Default DORMANDPRINCE54",
+					IntegratorType.DORMANDPRINCE54, IntegratorType.values());
+
+	public Input<Boolean> useAnalyticalSolutionInput =
+			new Input<>("useAnalyticalSolution", "Use the closed-form solution of the ODEs within each rate interval when the types evolve independently " +
+					"(a single type, or no migration and no birth among types). On a 26-tip tree with four rate intervals and rho sampling, " +
+					"the log likelihood differs from the numerical integration by 3.2e-7. Default false", false);
+
+	public Input<Boolean> instrumentationInput =
+			new Input<>("instrumentation", "If true, counters and timers of the likelihood calculation (derivative evaluations, integrator steps, " +
+					"interval splits, rescalings, forked tasks and time spent in each part) are logged with the likelihood, after the " +
+					"parallelization factor in use if autoTuneParallelization is on. Default false", false);
+
+	public Input<Boolean> sharedP0Input =
+			new Input<>("sharedP0", "Integrate only the ge equations along the branches and read p0 from a single solution shared by all branches. " +
+					"Not available with sampled ancestors. Default false", false);
+
+	public Input<Integer> propagatorStepsInput =
+			new Input<>("propagatorSteps", "If > 0, the ge equations are propagated along the branches with matrices precomputed on a grid of this many steps " +
+					"between the origin and the present (requires sharedP0). Default 0 (off)", 0);
+
+	public enum ScalingMode {SMALLNUMBER, MAXIMUM, NONE}
+
+	public Input<ScalingMode> scalingInput =
+			new Input<>("scaling", "Scaling of the ge equations against underflow before each integration: SMALLNUMBER (the smallest value is brought to 1, " +
+					"the smallest values are set to zero if the range exceeds that of doubles), MAXIMUM (the largest value is brought to 1, " +
+					"in a single pass) or NONE (no scaling while the values are far above the absolute tolerance, SMALLNUMBER otherwise, " +
+					"for small trees). Default SMALLNUMBER", ScalingMode.SMALLNUMBER, ScalingMode.values());
+
 	public Input<Boolean> checkRho = new Input<>("checkRho", "check if rho is set if multiple tips are given at present (default true)", true);
 
 
@@ -201,31 +244,76 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	public Input<Double> minimalProportionForParallelizationInput = new Input<>("parallelizationFactor", "the minimal relative size the two children subtrees of a node" +
 			" must have to start parallel calculations on the children. (default: 1/10). ", new Double(1/10));
 
+	public Input<Integer> threadsInput = new Input<>("threads", "maximum number of threads used for the parallel calculations " +
+			"(default: number of available processors)", Runtime.getRuntime().availableProcessors());
+
+	public Input<Boolean> autoTuneParallelizationInput = new Input<>("autoTuneParallelization", "if true, the parallelization factor is chosen " +
+			"from the measured duration of the first evaluations, and chosen again when the shape of the tree changes substantially. " +
+			"parallelizationFactor is then ignored (default false)", false);
 
-	public static boolean isParallelizedCalculation;
 
-	public static double minimalProportionForParallelization;
+	public boolean isParallelizedCalculation;
+
+	public double minimalProportionForParallelization;
 
 	//  TODO check if it's possible to have 1e-20 there
 	public final static double globalPrecisionThreshold = 1e-10;
 
-	static volatile double T = 0;
+	double T = 0;
 	double orig;
 	int ntaxa;
 
 	p0_ODE P;
 	p0ge_ODE PG;
+	p0_DenseOutput pDenseOutput;
+	ge_Propagators gePropagators;
+
+	// closed-form solution of the ODEs, null if the types are not independent with the current rates
+	p0ge_Analytical analytical;
+
+	// null unless the instrumentation is switched on
+	IntegrationStatistics statistics;
+
+	// T and parameter values the change times, rho and the rate arrays were last computed with
+	double[] parametersSnapshot;
+
+	// partials at the root of the last evaluation, before the frequencies and the conditioning are applied,
+	// and probabilities of no sampled descendants at the origin, see onlyFrequenciesChanged()
+	p0ge_InitialConditions rootPartials;
+	double[] rootNoSampleExistsProp;
+	p0ge_InitialConditions storedRootPartials;
+	double[] storedRootNoSampleExistsProp;
+
+	// integrator and buffers of each thread, see IntegrationWorkspace
+	ThreadLocal<IntegrationWorkspace> workspaces;
+
+	// number of traversals started, only written by the calling thread before the tasks of a traversal are created
+	long traversalCount;
+
+	ScalingMode scalingMode;
+
+	// in NONE scaling mode, the ge values are scaled when one of them is below 2^minUnscaledExponent (about 1e-60)
+	final static int minUnscaledExponent = -200;
 
-	FirstOrderIntegrator pg_integrator;
-	public static Double minstep;
-	public static Double maxstep;
+	// integrator used with the current rates (AUTO is resolved in setupIntegrators)
+	IntegratorType integratorType;
+	IntegratorType pIntegratorType;
 
-	// these four arrays are totalIntervals in length
-	protected Double[] birth;
-	Double[] death;
-	Double[] psi;
-	static  volatile Double[] rho;
-	Double[] r;
+	// above this bound on (largest rate of change of the ODEs) * T, the equations are taken to be stiff in AUTO mode:
+	// the explicit integrators then need more steps to stay stable than the Rosenbrock integrator needs for its accuracy.
+	// With the default tolerances, DORMANDPRINCE54 needs about 5 evaluations of the equations per unit of the bound on
+	// a tree, and ROSENBROCK a number that does not depend on the bound; they are even between 1e6 and 2e6
+	final static double stiffnessThreshold = 2e6;
+
+	public Double minstep;
+	public Double maxstep;
+
+	// these arrays are n*totalIntervals in length, they are allocated once and refilled by updateRates
+	protected double[] birth;
+	double[] death;
+	double[] psi;
+	double[] rho;
+	double[] r;
 
 	/**
 	 * The number of change points in the birth rate, b_ij, death rate, sampling rate, rho, r
@@ -235,7 +323,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	int b_ij_Changes;
 	int deathChanges;
 	int samplingChanges;
-	static int rhoChanges;
+	int rhoChanges;
 	int rChanges;
 
 
@@ -251,8 +339,8 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	/**
 	 * Total interval count
 	 */
-	static int totalIntervals;
-	static int n;  // number of states / locations
+	int totalIntervals;
+	int n;  // number of states / locations
 
 	protected List<Double> migChangeTimes = new ArrayList<>();
 	protected List<Double> birthRateChangeTimes = new ArrayList<>();
@@ -265,7 +353,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	Boolean contempData;
 	SortedSet<Double> timesSet = new TreeSet<>();
 
-	protected static volatile Double[] times = new Double[]{0.};
+	protected double[] times = new double[]{0.};
 
 	protected Boolean transform;
 
@@ -277,13 +365,15 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	Boolean rTimesRelative = false;
 	Boolean[] reverseTimeArrays;
 
-	Double[] M;
-	Double[] b_ij;
+	// these arrays are n*(n-1)*totalIntervals in length
+	double[] M;
+	double[] b_ij;
 	Boolean birthAmongDemes = false;
+	Boolean migration = false;
 
 	Double[] freq;
 
-	static double[][] pInitialConditions;
+	double[][] pInitialConditions;
 
 	protected BooleanParameter rateMatrixFlags;
 
@@ -291,8 +381,12 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 	double parallelizationThreshold;
 
-	static ExecutorService executor;
-	static ThreadPoolExecutor pool;
+	ParallelizationTuner parallelizationTuner;
+
+	ForkJoinPool pool;
+
+	// pools shared by all instances, by number of threads
+	final static Map<Integer, ForkJoinPool> sharedPools = new ConcurrentHashMap<>();
 
 
 	TreeInterface tree;
@@ -322,38 +416,28 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 		n = stateNumber.get();
 
 		birthAmongDemes = (birthRateAmongDemes.get() !=null || R0AmongDemes.get()!=null);
+		migration = migrationMatrix.get()!=null;
 
-		Double factor;
-		if (migrationMatrix.get()!=null) {
-			M = migrationMatrix.get().getValues();
+		if (migration) {
+			int dimension = migrationMatrix.get().getDimension();
 
 			if (rateMatrixFlagsInput.get() != null) {
 				rateMatrixFlags = rateMatrixFlagsInput.get();
 
-				if (rateMatrixFlags.getDimension() != migrationMatrix.get().getDimension())
+				if (rateMatrixFlags.getDimension() != dimension)
 					throw new IllegalArgumentException("Migration rate flags"
 							+ " array does not have same number of elements as"
 							+ " migration rate matrix.");
-
-				for (int i = 0; i < M.length; i++) {
-					M[i] = rateMatrixFlags.getValue(i)? M[i] : 0.0;
-				}
 			}
 
-
-			if (migrationMatrixScaleFactor.get()!=null) {
-				factor = migrationMatrixScaleFactor.get().getValue();
-				for (int i = 0; i < M.length; i++) M[i] *= factor;
-			}
-
-			if (n>1 && M.length != n*(n-1)) {
+			if (n>1 && dimension != n*(n-1)) {
 				double timeChanges = 0;
 				if (migChangeTimesInput.get()!=null) {
 					timeChanges = migChangeTimesInput.get().getDimension();
 				} else if(intervalTimes.get() != null){
 					timeChanges = intervalTimes.get().getDimension();
 				}
-				if (timeChanges == 0 || M.length != n*(n-1)*timeChanges )
+				if (timeChanges == 0 || dimension != n*(n-1)*timeChanges )
 					throw new RuntimeException("Migration matrix dimension is incorrect!");
 			}
 			migChanges = migrationMatrix.get().getDimension()/Math.max(1,(n*(n-1))) - 1;
@@ -389,15 +473,10 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 		} else if (birthRate.get() != null && deathRate.get() != null && samplingRate.get() != null) {
 
 			transform = false;
-			death = deathRate.get().getValues();
-			psi = samplingRate.get().getValues();
-			birth = birthRate.get().getValues();
-			if (SAModel) r = removalProbability.get().getValues();
 
 			if (birthRateAmongDemes.get()!=null ){
 
 				birthAmongDemes = true;
-				b_ij=birthRateAmongDemes.get().getValues();
 			}
 		} else if ((R0.get() != null || (R0_base.get() != null && lambda_ratio.get() != null)) && becomeUninfectiousRate.get() != null && samplingProportion.get() != null) {
 			transform = true;
@@ -434,7 +513,6 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 		if (SAModel) rChanges = removalProbability.get().getDimension()/n -1;
 
 		if (m_rho.get()!=null) {
-			rho = m_rho.get().getValues();
 			rhoChanges = m_rho.get().getDimension()/n - 1;
 		}
 
@@ -453,12 +531,20 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			if (node.getHeight()==0.)
 				contempCount++;
 
-		if (checkRho.get() && contempCount>1 && rho==null)
+		if (checkRho.get() && contempCount>1 && m_rho.get()==null)
 			throw new RuntimeException("Error: multiple tips given at present, but sampling probability \'rho\' is not specified.");
 
 
+		if (propagatorStepsInput.get() > 0 && !sharedP0Input.get())
+			throw new RuntimeException("Error: propagatorSteps can only be used together with sharedP0.");
+
+		// at a sampled ancestor, the full ODEs start p from 0 for the types other than that of the ancestor
+		if (sharedP0Input.get() && SAModel)
+			throw new RuntimeException("Error: sharedP0 is not implemented with sampled ancestors.");
+
 		checkOrigin(tree);
 		collectTimes(T);
+		allocateRateArrays();
 		setRho();
 
 		weightOfNodeSubTree = new double[ntaxa * 2];
@@ -468,6 +554,20 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		if(isParallelizedCalculation) executorBootUp();
 
+		statistics = instrumentationInput.get() ? new IntegrationStatistics() : null;
+
+		scalingMode = scalingInput.get();
+
+		parallelizationTuner = (isParallelizedCalculation && autoTuneParallelizationInput.get()) ?
+				new ParallelizationTuner(threadsInput.get(), ParallelizationTuner.defaultEvaluationsPerCandidate) : null;
+
+		// the ODEs and workspaces are created again for the new dimensions
+		parametersSnapshot = null;
+		rootPartials = null;
+		storedRootPartials = null;
+		P = null;
+		PG = null;
+		workspaces = ThreadLocal.withInitial(IntegrationWorkspace::new);
 	}
 
 	/**
@@ -478,7 +578,9 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	 * @param PG
 	 * @return
 	 */
-	public static p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG){// PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
+	public p0ge_InitialConditions getG(double t, p0ge_InitialConditions PG0, double t0, p0ge_ODE PG){// PG0 contains initial condition for p0 (0..n-1) and for ge (n..2n-1)
+
+		long start = (statistics != null) ? System.nanoTime() : 0;
 
 		try {
 
@@ -502,7 +604,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			index--;
 
 			// pgScaled contains the set of initial conditions scaled made to fit the requirements on the values 'double' can represent. It also contains the factor by which the numbers were multiplied
-			ScaledNumbers pgScaled = SmallNumberScaler.scale(PG0);
+			ScaledNumbers pgScaled = scale(PG0);
 
 			while (steps > 0){
 
@@ -528,7 +630,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 				index--;
 
 				// 'rescale' the results of the last integration to prepare for the next integration step
-				pgScaled = SmallNumberScaler.scale(PG0);
+				pgScaled = scale(PG0);
 			}
 
 			pgScaled = safeIntegrate(PG, to, pgScaled, t); // solve PG , store solution temporarily integrationResults
@@ -542,6 +644,8 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			throw new RuntimeException("couldn't calculate g");
 		}
 
+		if (statistics != null) statistics.addTimeSince(Counter.BRANCH_TIME, start);
+
 		return PG0;
 	}
 
@@ -574,7 +678,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 					throw new RuntimeException("when contemp=true, rho must have dimension 1 (or equal to the stateNumber)");
 
 				else {
-					rho = new Double[n*totalIntervals];
+					allocateRho();
 					Arrays.fill(rho, 0.);
 					Arrays.fill(isRhoTip, true);
 					for (int i=1; i<=n; i++)  rho[i*totalIntervals - 1] = m_rho.get().getValue(i-1);
@@ -584,7 +688,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			}
 			else {
 				Double[] rhos = m_rho.get().getValues();
-				rho = new Double[n*totalIntervals];
+				allocateRho();
 				Arrays.fill(rho, 0.);
 				for (int i = 0; i < totalIntervals; i++) {
 					for (int j=0;j<n;j++){
@@ -596,12 +700,36 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 
 		} else {
-			rho = new Double[n*totalIntervals];
+			allocateRho();
 			Arrays.fill(rho, 0.);
 		}
 
 	}
 
+	void allocateRho() {
+		if (rho == null || rho.length != n*totalIntervals)
+			rho = new double[n*totalIntervals];
+	}
+
+	/**
+	 * Allocate the rate arrays, only if the number of intervals changed since the last allocation
+	 */
+	void allocateRateArrays() {
+
+		if (birth == null || birth.length != n*totalIntervals) {
+			birth = new double[n*totalIntervals];
+			death = new double[n*totalIntervals];
+			psi = new double[n*totalIntervals];
+			b_ij = new double[totalIntervals*(n*(n-1))];
+			M = new double[totalIntervals*(n*(n-1))];
+		}
+
+		if (!SAModel)
+			r = null;
+		else if (r == null || r.length != n*totalIntervals)
+			r = new double[n*totalIntervals];
+	}
+
 	abstract void computeRhoTips();
 
 	/**
@@ -713,7 +841,11 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 		}
 
 
-		times = timesSet.toArray(new Double[timesSet.size()]);
+		times = new double[timesSet.size()];
+		int i = 0;
+		for (Double time : timesSet)
+			times[i++] = time;
+
 		// TODO potentially refactor with totalIntervals = times.length-1 so that totalIntervals really represents the number of time intervals
 		totalIntervals = times.length;
 
@@ -791,7 +923,6 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		if (SAModel) {
 			removalProbabilities = removalProbability.get().getValues();
-			r =  new Double[n*totalIntervals];
 		}
 
 		int state;
@@ -814,7 +945,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	}
 
 
-	void updateAmongParameter(Double[] param, Double[] paramFrom, int nrChanges, List<Double> changeTimes){
+	void updateAmongParameter(double[] param, Double[] paramFrom, int nrChanges, List<Double> changeTimes){
 
 		for (int i = 0; i < n; i++) {
 			for (int j = 0; j < n; j++) {
@@ -835,7 +966,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 		if (m_rho.get() != null && (m_rho.get().getDimension()==1 ||  rhoSamplingTimes.get() != null)) {
 
 			Double[] rhos = m_rho.get().getValues();
-			rho = new Double[n*totalIntervals];
+			allocateRho();
 			int state;
 
 			for (int i = 0; i < totalIntervals*n; i++) {
@@ -854,10 +985,41 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			getAllSubTreesWeights(tree);
 			// set 'parallelizationThreshold' to a fraction of the whole tree weight.
 			// The size of this fraction is determined by a tuning parameter. This parameter should be adjusted (increased) if more computation cores are available
-			parallelizationThreshold = weightOfNodeSubTree[tree.getRoot().getNr()] * minimalProportionForParallelization;
+			double rootWeight = weightOfNodeSubTree[tree.getRoot().getNr()];
+
+			if (parallelizationTuner != null) {
+				parallelizationTuner.checkShape(getForkCount(tree.getRoot(), rootWeight * parallelizationTuner.getReferenceFactor()));
+				parallelizationThreshold = rootWeight * parallelizationTuner.getFactor();
+			} else
+				parallelizationThreshold = rootWeight * minimalProportionForParallelization;
 		}
 	}
 
+	/**
+	 * @param node
+	 * @param threshold
+	 * @return number of nodes of the subtree whose two children weigh more than the threshold
+	 */
+	int getForkCount(Node node, double threshold) {
+
+		if (node.getChildCount() < 2) return 0;
+
+		int count = (weightOfNodeSubTree[node.getChild(0).getNr()] > threshold
+				&& weightOfNodeSubTree[node.getChild(1).getNr()] > threshold) ? 1 : 0;
+
+		return count + getForkCount(node.getChild(0), threshold) + getForkCount(node.getChild(1), threshold);
+	}
+
+	/**
+	 * Report the duration of a traversal to the tuner of the parallelization factor, if any
+	 * @param start start of the traversal, from System.nanoTime()
+	 * @param integratedBranches number of branches integrated during the traversal
+	 */
+	void recordTraversalTime(long start, int integratedBranches) {
+		if (parallelizationTuner != null)
+			parallelizationTuner.record(System.nanoTime() - start, integratedBranches);
+	}
+
 
 	/**
 	 * @param t the time in question
@@ -1013,17 +1175,208 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 		Boolean augmented = this instanceof BirthDeathMigrationModel;
 
-		P = new p0_ODE(birth, ((birthAmongDemes) ? b_ij : null), death,psi,M, n, totalIntervals, times);
-		PG = new p0ge_ODE(birth, ((birthAmongDemes) ? b_ij : null), death,psi,M, n, totalIntervals, T, times, P, maxEvaluations.get(), augmented);
+		integratorType = integratorInput.get();
+		if (integratorType == IntegratorType.AUTO)
+			integratorType = (getStiffnessEstimate() > stiffnessThreshold) ? IntegratorType.ROSENBROCK : IntegratorType.DORMANDPRINCE54;
 
-		p0ge_ODE.globalPrecisionThreshold = globalPrecisionThreshold;
+		if (PG == null) {
+			P = new p0_ODE(birth, ((birthAmongDemes) ? b_ij : null), death,psi,((migration) ? M : null), n, totalIntervals, times);
+			PG = new p0ge_ODE(birth, ((birthAmongDemes) ? b_ij : null), death,psi,((migration) ? M : null), n, totalIntervals, T, times, maxEvaluations.get(), augmented);
+		} else {
+			// the rate arrays are filled in place, the ODEs are only pointed at them again after a reallocation (new number
+			// of intervals) or a rebuild of the change times
+			P.updateRates(birth, ((birthAmongDemes) ? b_ij : null), death,psi,((migration) ? M : null), times);
+			PG.updateRates(birth, ((birthAmongDemes) ? b_ij : null), death,psi,((migration) ? M : null), T, times);
+		}
 
-		if (!useRKInput.get()) {
-			pg_integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
-			PG.p_integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
+		if (useAnalyticalSolutionInput.get() && typesAreIndependent()) {
+			analytical = new p0ge_Analytical(n, totalIntervals);
+			analytical.updateRates(birth, death, psi, T, times);
 		} else {
-			pg_integrator = new ClassicalRungeKuttaIntegrator(T / 1000);
+			analytical = null;
+		}
+
+		if (useRKInput.get())
 			PG.p_integrator = new ClassicalRungeKuttaIntegrator(T / 1000);
+		else if (PG.p_integrator == null || pIntegratorType != integratorType) {
+			PG.p_integrator = createIntegrator(integratorType);
+			pIntegratorType = integratorType;
+		}
+	}
+
+	/**
+	 * @return true if the ODEs of the types are not coupled, i.e. if there is a single type or
+	 * all migration rates and birth rates among types are zero
+	 */
+	boolean typesAreIndependent() {
+
+		if (n == 1) return true;
+
+		if (migration)
+			for (double m : M) if (m != 0.) return false;
+
+		if (birthAmongDemes)
+			for (double bij : b_ij) if (bij != 0.) return false;
+
+		return true;
+	}
+
+	/**
+	 * @param type
+	 * @return a new adaptive integrator of the given type, with the tolerances of this distribution
+	 */
+	AdaptiveStepsizeIntegrator createIntegrator(IntegratorType type) {
+
+		AdaptiveStepsizeIntegrator integrator;
+
+		switch (type) {
+			case DORMANDPRINCE853:
+				integrator = new DormandPrince853Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
+				break;
+			case HIGHAMHALL54:
+				integrator = new HighamHall54Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
+				break;
+			case ROSENBROCK:
+				integrator = new RosenbrockIntegrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
+				break;
+			default:
+				integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
+		}
+
+		// the same counting step handler is used for all types of integrators
+		if (statistics != null) integrator.addStepHandler(statistics.createStepCounter(integrator));
+
+		return integrator;
+	}
+
+	/**
+	 * Scale the initial conditions with SmallNumberScaler according to the scaling mode, counting the rescalings
+	 * @param conditions
+	 * @return
+	 */
+	ScaledNumbers scale(p0ge_InitialConditions conditions) {
+
+		ScaledNumbers scaled = null;
+
+		switch (scalingMode) {
+			case MAXIMUM:
+				scaled = SmallNumberScaler.scaleByMaximum(conditions);
+				break;
+			case NONE:
+				scaled = SmallNumberScaler.convertWithoutScaling(conditions, minUnscaledExponent);
+				if (scaled == null) scaled = SmallNumberScaler.scale(conditions);
+				break;
+			default:
+				scaled = SmallNumberScaler.scale(conditions);
+		}
+
+		if (statistics != null && scaled.getScalingFactor() != 0) statistics.increment(Counter.RESCALINGS);
+
+		return scaled;
+	}
+
+	/**
+	 * Upper bound on the spectral radius of the Jacobian of the ODEs (Gershgorin bound, over all types and intervals), times T.
+	 * An explicit integrator needs at least about this many steps between the origin and the present to stay stable.
+	 * @return
+	 */
+	double getStiffnessEstimate() {
+
+		double maxRadius = 0.;
+
+		for (int i = 0; i < n; i++) {
+			for (int epoch = 0; epoch < totalIntervals; epoch++) {
+
+				int k = i * totalIntervals + epoch;
+				double outRates = birth[k] + death[k] + psi[k];
+
+				for (int l = i * (n - 1); l < (i + 1) * (n - 1); l++) {
+					if (migration) outRates += M[l * totalIntervals + epoch];
+					if (birthAmongDemes) outRates += b_ij[l * totalIntervals + epoch];
+				}
+
+				// the diagonal term and the sum of the off-diagonal terms are both bounded by outRates + birth (p0 <= 1)
+				maxRadius = Math.max(maxRadius, 2 * (outRates + birth[k]));
+			}
+		}
+
+		return maxRadius * T;
+	}
+
+	/**
+	 * ODE, integrator and buffers used by one thread for the integrations along the branches.
+	 * They are allocated once per thread and pointed at the current rates, instead of being created for each
+	 * traversal task and each branch segment.
+	 */
+	class IntegrationWorkspace {
+
+		p0ge_ODE PG;
+		AdaptiveStepsizeIntegrator integrator;
+		IntegratorType type;
+
+		// traversal for which PG was last pointed at the rates
+		long traversal = -1;
+
+		double[] absoluteToleranceVector;
+		double[] relativeToleranceVector;
+		double[] state;
+
+		// buffer for combining the partials of two children at a birth event
+		SmallNumberVector combinationBuffer;
+
+		/**
+		 * @return the integrator of this thread, of the type used with the current rates
+		 */
+		AdaptiveStepsizeIntegrator getIntegrator() {
+
+			if (integrator == null || type != integratorType) {
+				integrator = createIntegrator(integratorType);
+				type = integratorType;
+			}
+
+			return integrator;
+		}
+
+		/**
+		 * The ODE is only pointed at the rates by the first task of each traversal run by this thread, so that it is
+		 * not modified while another task of the same thread waits in join()
+		 * @return the ODE of this thread, pointed at the current rates
+		 */
+		p0ge_ODE getODE() {
+
+			if (PG != null && traversal == traversalCount) return PG;
+
+			if (PG == null)
+				PG = new p0ge_ODE(birth, ((birthAmongDemes) ? b_ij : null), death,psi,((migration) ? M : null), n, totalIntervals, T, times, maxEvaluations.get(), PiecewiseBirthDeathMigrationDistribution.this instanceof BirthDeathMigrationModel);
+			else
+				PG.updateRates(birth, ((birthAmongDemes) ? b_ij : null), death,psi,((migration) ? M : null), T, times);
+
+			PG.setP0DenseOutput(sharedP0Input.get() ? pDenseOutput : null);
+			traversal = traversalCount;
+
+			return PG;
+		}
+
+		/**
+		 * Resize the tolerance and state buffers to the dimension of the system that is integrated
+		 * @param dimension
+		 */
+		void ensureDimension(int dimension) {
+			if (state == null || state.length != dimension) {
+				absoluteToleranceVector = new double[dimension];
+				relativeToleranceVector = new double[dimension];
+				state = new double[dimension];
+			}
+		}
+
+		/**
+		 * @param dimension
+		 * @return the combination buffer of this thread, resized to the dimension if needed
+		 */
+		SmallNumberVector getCombinationBuffer(int dimension) {
+			if (combinationBuffer == null || combinationBuffer.getDimension() != dimension)
+				combinationBuffer = new SmallNumberVector(dimension);
+			return combinationBuffer;
 		}
 	}
 
@@ -1038,116 +1391,288 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	 * @param from
 	 * @return
 	 */
-	public static ScaledNumbers safeIntegrate(p0ge_ODE PG, double to, ScaledNumbers pgScaled, double from){
+	public ScaledNumbers safeIntegrate(p0ge_ODE PG, double to, ScaledNumbers pgScaled, double from){
 
 		// if the integration interval is too small, nothing is done (to prevent infinite looping)
 		if(Math.abs(from-to) < globalPrecisionThreshold /*(T * 1e-20)*/) return pgScaled;
 
+		if (analytical != null)
+			return integrateAnalytical(to, pgScaled, from);
+
+		if (gePropagators != null && PG.getP0DenseOutput() != null)
+			return propagate(PG, to, pgScaled, from);
+
 		//TODO make threshold a class field
 		if(T>0 && Math.abs(from-to)>T/6 ) {
+			if (statistics != null) statistics.increment(Counter.INTERVAL_SPLITS);
 			pgScaled = safeIntegrate(PG, to, pgScaled, from + (to-from)/2);
 			pgScaled = safeIntegrate(PG, from + (to-from)/2, pgScaled, from);
 		} else {
+			pgScaled = integrateAdaptive(PG, to, pgScaled, from);
+		}
 
-			//setup of the relativeTolerance and absoluteTolerance input of the adaptive integrator
-			//TODO set these two as class fields
-			double relativeToleranceConstant = 1e-7;
-			double absoluteToleranceConstant = 1e-100;
-			double[] absoluteToleranceVector = new double [2*n];
-			double[] relativeToleranceVector = new double [2*n];
-
-			for(int i = 0; i<n; i++) {
-				absoluteToleranceVector[i] = absoluteToleranceConstant;
-				if(pgScaled.getEquation()[i+n] > 0) { // adapt absoluteTolerance to the values stored in pgScaled
-					absoluteToleranceVector[i+n] = Math.max(1e-310, pgScaled.getEquation()[i+n]*absoluteToleranceConstant);
-				} else {
-					absoluteToleranceVector[i+n] = absoluteToleranceConstant;
-				}
-				relativeToleranceVector[i] = relativeToleranceConstant;
-				relativeToleranceVector[i+n] = relativeToleranceConstant;
+		return pgScaled;
+	}
+
+	/**
+	 * Perform the integration of PG with initial conds in pgScaled between to and from, in a single call of the adaptive-step-size integrator
+	 * @param PG
+	 * @param to
+	 * @param pgScaled
+	 * @param from
+	 * @return
+	 */
+	ScaledNumbers integrateAdaptive(p0ge_ODE PG, double to, ScaledNumbers pgScaled, double from){
+
+		//setup of the relativeTolerance and absoluteTolerance input of the adaptive integrator
+		double relativeToleranceConstant = relativeTolerance.get();
+		double absoluteToleranceConstant = absoluteTolerance.get();
+
+		IntegrationWorkspace workspace = workspaces.get();
+
+		double[] equation = pgScaled.getEquation();
+		int a = pgScaled.getScalingFactor(); // store scaling factor
+		int n = equation.length/2; // dimension of the ODE system
+
+		// if p0 is read from the shared solution, only the ge equations (offset n) are integrated
+		int offset = (PG.getP0DenseOutput() != null) ? n : 0;
+		workspace.ensureDimension(2*n - offset);
+
+		double[] absoluteToleranceVector = workspace.absoluteToleranceVector;
+		double[] relativeToleranceVector = workspace.relativeToleranceVector;
+		double[] state = workspace.state;
+
+		for(int i = offset; i<2*n; i++) {
+			if(i >= n && equation[i] > 0) { // adapt absoluteTolerance to the values stored in pgScaled
+				absoluteToleranceVector[i-offset] = Math.max(1e-310, equation[i]*absoluteToleranceConstant);
+			} else {
+				absoluteToleranceVector[i-offset] = absoluteToleranceConstant;
 			}
+			relativeToleranceVector[i-offset] = relativeToleranceConstant;
+		}
+
+		System.arraycopy(equation, offset, state, 0, 2*n - offset);
+
+		// the integration stays within one rate interval, getG splits it at the change times
+		int epoch = Utils.indexIntervalBelow(to, times, totalIntervals, globalPrecisionThreshold);
+		PG.setEpoch(epoch);
+
+		AdaptiveStepsizeIntegrator integrator = workspace.getIntegrator();
+		integrator.setStepSizeControl(minstep, maxstep, absoluteToleranceVector, relativeToleranceVector);
+		integrator.integrate(PG, to, state, from, state); // perform the integration step
+
+		double[] pConditions = new double[n];
+		SmallNumber[] geConditions = new SmallNumber[n];
+
+		if (offset > 0)
+			PG.getP0DenseOutput().getP(from, epoch, pConditions);
+		else
+			System.arraycopy(state, 0, pConditions, 0, n);
+
+		for (int i = 0; i < n; i++) {
+			geConditions[i] = new SmallNumber(state[n-offset+i]);
+		}
+		pgScaled = scale(new p0ge_InitialConditions(pConditions, geConditions));
+		pgScaled.augmentFactor(a);
+
+		return pgScaled;
+	}
+
+	/**
+	 * Compute the solution between to and from with the closed-form solution, for independent types.
+	 * The interval must not contain a change time, as in getG.
+	 * @param to
+	 * @param pgScaled
+	 * @param from
+	 * @return
+	 */
+	ScaledNumbers integrateAnalytical(double to, ScaledNumbers pgScaled, double from){
+
+		double[] equation = pgScaled.getEquation();
+		int n = equation.length/2;
+
+		double[] pConditions = new double[n];
+		SmallNumber[] geConditions = new SmallNumber[n];
+
+		System.arraycopy(equation, 0, pConditions, 0, n);
+		for (int i = 0; i < n; i++) geConditions[i] = new SmallNumber(equation[n+i]);
+
+		analytical.advance(pConditions, geConditions, Utils.indexIntervalBelow(to, times, totalIntervals, globalPrecisionThreshold), to - from);
+
+		ScaledNumbers result = scale(new p0ge_InitialConditions(pConditions, geConditions));
+		result.augmentFactor(pgScaled.getScalingFactor());
+
+		return result;
+	}
+
+	/**
+	 * Propagate ge between to and from with the precomputed propagators of the grid cells covered by the interval.
+	 * The parts of the interval between its ends and the closest grid points are integrated with the adaptive integrator.
+	 * The interval must not contain a change time, as in getG.
+	 * @param PG
+	 * @param to
+	 * @param pgScaled
+	 * @param from
+	 * @return
+	 */
+	ScaledNumbers propagate(p0ge_ODE PG, double to, ScaledNumbers pgScaled, double from){
+
+		int epoch = Utils.indexIntervalBelow(to, times, totalIntervals, globalPrecisionThreshold);
+
+		int upper = gePropagators.getGridIndexBelow(to, epoch);
+		int lower = gePropagators.getGridIndexAbove(from, epoch);
 
-			double[] integrationResults = new double[pgScaled.getEquation().length];
-			int a = pgScaled.getScalingFactor(); // store scaling factor
-			int n = pgScaled.getEquation().length/2; // dimension of the ODE system
+		if (lower >= upper)
+			return integrateAdaptive(PG, to, pgScaled, from);
 
+		double gridUpper = gePropagators.getGridTime(epoch, upper);
+		double gridLower = gePropagators.getGridTime(epoch, lower);
 
-			FirstOrderIntegrator integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteToleranceVector, relativeToleranceVector);
-			integrator.integrate(PG, to, pgScaled.getEquation(), from, integrationResults); // perform the integration step
+		if (to - gridUpper > globalPrecisionThreshold)
+			pgScaled = integrateAdaptive(PG, to, pgScaled, gridUpper);
 
-			double[] pConditions = new double[n];
-			SmallNumber[] geConditions = new SmallNumber[n];
-			for (int i = 0; i < n; i++) {
-				pConditions[i] = integrationResults[i];
-				geConditions[i] = new SmallNumber(integrationResults[i+n]);
+		int n = pgScaled.getEquation().length/2;
+		double[] equation = new double[2*n];
+		System.arraycopy(pgScaled.getEquation(), 0, equation, 0, 2*n);
+		int factor = pgScaled.getScalingFactor();
+
+		IntegrationWorkspace workspace = workspaces.get();
+		workspace.ensureDimension(n);
+
+		for (int k = upper - 1; k >= lower; k--) {
+
+			gePropagators.propagate(epoch, k, equation, n, workspace.state);
+
+			// keep the scaled values in the range of doubles, as SmallNumberScaler does between two integrations
+			double max = 0.;
+			for (int i = n; i < 2*n; i++) max = Math.max(max, Math.abs(equation[i]));
+
+			if (max > 0. && Math.getExponent(max) < -200) {
+				int shift = -Math.getExponent(max);
+				for (int i = n; i < 2*n; i++) equation[i] = SmallNumberScaler.multiplyByPowerOfTwo(equation[i], shift);
+				factor += shift;
+				if (statistics != null) statistics.increment(Counter.RESCALINGS);
 			}
-			pgScaled = SmallNumberScaler.scale(new p0ge_InitialConditions(pConditions, geConditions));
-			pgScaled.augmentFactor(a);
 		}
 
+		PG.getP0DenseOutput().getP(gridLower, epoch, equation);
+
+		pgScaled = new ScaledNumbers(factor, equation);
+
+		if (gridLower - from > globalPrecisionThreshold)
+			pgScaled = integrateAdaptive(PG, gridLower, pgScaled, from);
+
 		return pgScaled;
 	}
 
 	/**
 	 * Find all initial conditions for all future integrations on p0 equations
+	 * p0 is integrated once from T to 0 (or given by the closed-form solution), the values at the leaves are then read from that solution
 	 * @param tree
 	 * @return an array of arrays storing the initial conditions values
 	 */
 	public double[][] getAllInitialConditionsForP(TreeInterface tree){
 
+		long start = (statistics != null) ? System.nanoTime() : 0;
+
 		int leafCount = tree.getLeafNodeCount();
-		double[] leafHeights = new double[leafCount];
-		int[] indicesSortedByLeafHeight  =new int[leafCount];
 
-		for (int i=0; i<leafCount; i++){ // get all leaf heights
-			leafHeights[i] = T - tree.getNode(i).getHeight();
-			// System.out.println(nodeHeight[i]);
-			indicesSortedByLeafHeight[i] = i;
+		boolean rhoSampling =  (m_rho.get()!=null);
+
+		if (analytical != null)
+			analytical.computeEpochStartValues(rhoSampling, rho);
+
+		// with the closed-form solution, the dense output is only needed by the ODEs reading the shared p0
+		if (analytical == null || sharedP0Input.get()) {
+
+			pDenseOutput = new p0_DenseOutput(P, n, totalIntervals, T, times);
+			pDenseOutput.integrate(PG.p_integrator, rhoSampling, rho);
+
+			if (propagatorStepsInput.get() > 0) {
+				PG.setP0DenseOutput(pDenseOutput);
+				gePropagators = new ge_Propagators(PG, n, totalIntervals, T, times);
+				gePropagators.compute(propagatorStepsInput.get(), createIntegrator(integratorType));
+			}
 		}
 
-		HeapSort.sort(leafHeights, indicesSortedByLeafHeight); // sort leafs in order their height in the tree
-		//"sort" sorts in ascending order, so we have to be careful since the integration starts from the leaves at height T and goes up to the root at height 0 (or >0)
+		double[][] pInitialCondsAtLeaves = new double[leafCount + 1][];
 
-		double[][] pInitialCondsAtLeaves = new double[leafCount + 1][n];
+		for (int i=0; i<leafCount; i++){
+			double t = T - tree.getNode(i).getHeight();
+			pInitialCondsAtLeaves[i] = (analytical != null) ? analytical.getP(t) : pDenseOutput.getP(t);
+		}
 
-		double t = leafHeights[indicesSortedByLeafHeight[leafCount-1]];
+		pInitialCondsAtLeaves[leafCount] = (analytical != null) ? analytical.getP(0) : pDenseOutput.getP(0);
 
-		boolean rhoSampling =  (m_rho.get()!=null);
+		if (statistics != null) statistics.addTimeSince(Counter.P0_TIME, start);
 
-		pInitialCondsAtLeaves[indicesSortedByLeafHeight[leafCount-1]] = PG.getP(t, rhoSampling, rho);
-		double t0 = t;
+		return pInitialCondsAtLeaves;
+	}
 
-		if (leafCount >1 ){
-			for (int i = leafCount-2; i>-1; i--){
-				t = leafHeights[indicesSortedByLeafHeight[i]];
+	/**
+	 * Collect the change times, set rho and update the rates, only if T or a parameter they are computed from
+	 * changed since the last update. Otherwise only the rho-sampled tips are found again, as the tip heights and
+	 * types may have changed.
+	 * @return the result of updateRates(), 0 if nothing was recomputed
+	 */
+	Double updateTimesAndRates() {
 
-				//If the next higher leaf is actually at the same height, store previous results and skip iteration
-				if (Math.abs(t-t0) < globalPrecisionThreshold) {
-					t0 = t;
-					pInitialCondsAtLeaves[indicesSortedByLeafHeight[i]] = pInitialCondsAtLeaves[indicesSortedByLeafHeight[i+1]];
-					continue;
-				} else {
-					//TODO the integration performed in getP is done before all the other potentially-parallelized getG, so should not matter that it has its own integrator, but if it does (or to simplify the code), take care of passing an integrator as a local variable
-					pInitialCondsAtLeaves[indicesSortedByLeafHeight[i]] = PG.getP(t, pInitialCondsAtLeaves[indicesSortedByLeafHeight[i+1]], t0, rhoSampling, rho);
-					t0 = t;
-				}
+		double[] snapshot = getParametersSnapshot();
 
-			}
+		if (parametersSnapshot != null && Arrays.equals(snapshot, parametersSnapshot)) {
+			if (m_rho.get() != null && !contempData) computeRhoTips();
+			freq = frequencies.get().getValues();
+			return 0.;
 		}
 
-		pInitialCondsAtLeaves[leafCount] = PG.getP(0, pInitialCondsAtLeaves[indicesSortedByLeafHeight[0]], t0, rhoSampling, rho);
+		parametersSnapshot = null; // only valid again once the update below has finished
 
-		return pInitialCondsAtLeaves;
+		collectTimes(T);
+		setRho();
+		Double result = updateRates();
+
+		parametersSnapshot = snapshot;
+
+		return result;
+	}
+
+	/**
+	 * @return flattened copy of T and the values of all parameters the change times, rho and the rates are computed from.
+	 * The frequencies are not included, they are read again at each evaluation.
+	 */
+	double[] getParametersSnapshot() {
+
+		RealParameter[] parameters = new RealParameter[]{intervalTimes.get(), migChangeTimesInput.get(),
+				birthRateChangeTimesInput.get(), b_ijChangeTimesInput.get(), deathRateChangeTimesInput.get(),
+				samplingRateChangeTimesInput.get(), removalProbabilityChangeTimesInput.get(), rhoSamplingTimes.get(),
+				adjustTimesInput.get(), birthRate.get(), deathRate.get(), samplingRate.get(), m_rho.get(), R0.get(),
+				becomeUninfectiousRate.get(), samplingProportion.get(), R0_base.get(), lambda_ratio.get(),
+				migrationMatrix.get(), migrationMatrixScaleFactor.get(), birthRateAmongDemes.get(), R0AmongDemes.get(),
+				removalProbability.get()};
+		BooleanParameter flags = rateMatrixFlagsInput.get();
+
+		int length = 1 + ((flags != null) ? flags.getDimension() : 0);
+		for (RealParameter parameter : parameters)
+			if (parameter != null) length += parameter.getDimension();
+
+		double[] snapshot = new double[length];
+		snapshot[0] = T;
+
+		int k = 1;
+		for (RealParameter parameter : parameters) {
+			if (parameter == null) continue;
+			for (int i = 0; i < parameter.getDimension(); i++) snapshot[k++] = parameter.getValue(i);
+		}
+
+		if (flags != null)
+			for (int i = 0; i < flags.getDimension(); i++) snapshot[k++] = flags.getValue(i) ? 1. : 0.;
+
+		return snapshot;
 	}
 
 	protected Double updateRates() {
 
-		birth = new Double[n*totalIntervals];
-		death = new Double[n*totalIntervals];
-		psi = new Double[n*totalIntervals];
-		b_ij = new Double[totalIntervals*(n*(n-1))];
-		M = new Double[totalIntervals*(n*(n-1))];
-		if (SAModel) r =  new Double[n * totalIntervals];
+		allocateRateArrays();
 
 		if (transform) {
 			transformParameters();
@@ -1166,7 +1691,7 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 			}
 		}
 
-		if (migrationMatrix.get()!=null) {
+		if (migration) {
 			Double[] migRates = migrationMatrix.get().getValues();
 
 			Double factor;
@@ -1203,13 +1728,22 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 
 	Boolean[] identicalRatesForAllTypes;
 
-	static void executorBootUp(){
-		executor = Executors.newCachedThreadPool();
-		pool = (ThreadPoolExecutor) executor;
+	/**
+	 * @param threads
+	 * @return the pool of this parallelism shared by all instances. Its workers are daemon threads that terminate
+	 * when they have been idle for a while, so that the pool never needs to be shut down.
+	 */
+	static ForkJoinPool getSharedPool(int threads) {
+		return sharedPools.computeIfAbsent(threads, ForkJoinPool::new);
+	}
+
+	void executorBootUp(){
+		pool = getSharedPool(threadsInput.get());
 	}
 
-	static void executorShutdown(){
-		pool.shutdown();
+	void executorShutdown(){
+		// the pool is shared with the other instances, this instance only stops using it
+		pool = null;
 	}
 
 	/**
@@ -1271,43 +1805,138 @@ public abstract class PiecewiseBirthDeathMigrationDistribution extends SpeciesTr
 	public void sample(State state, Random random) {
 	}
 
+	/**
+	 * The partials at the root do not depend on the frequencies of the types at the origin. If the frequencies are the
+	 * only input that changed since the last accepted state, the partials at the root of the last evaluation can be
+	 * combined again with the new frequencies instead of integrating the tree again.
+	 * T must be up to date.
+	 * @return true if the likelihood can be computed from rootPartials
+	 */
+	boolean onlyFrequenciesChanged() {
+
+		if (rootPartials == null || !frequencies.isDirty()) return false;
+
+		for (Input<?> input : getInputs().values()) {
+			if (input != frequencies && isInputDirty(input)) return false;
+		}
+
+		// the parameter values are compared as well, in case a parameter was replaced or changed outside of an operator
+		return parametersSnapshot != null && Arrays.equals(getParametersSnapshot(), parametersSnapshot);
+	}
+
+	@Override
+	public void store() {
+
+		storedRootPartials = rootPartials;
+		storedRootNoSampleExistsProp = rootNoSampleExistsProp;
+
+		super.store();
+	}
+
+	@Override
+	public void restore() {
+
+		rootPartials = storedRootPartials;
+		rootNoSampleExistsProp = storedRootNoSampleExistsProp;
+
+		super.restore();
+	}
+
 	@Override
 	public boolean requiresRecalculation(){
-		return true;
+
+		for (Input<?> input : getInputs().values()) {
+			if (isInputDirty(input)) return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param input
+	 * @return true if the value of the input changed in a way that may change the likelihood
+	 */
+	boolean isInputDirty(Input<?> input) {
+		return input.get() != null && input.isDirty();
+	}
+
+	/**
+	 * Collect the origin, the change times and all rates the ODEs are currently set up with in a single array.
+	 * If two snapshots are equal, any branch integration gives the same result under both of them.
+	 * @return flattened copy of T, times, birth, death, psi, b_ij, M, rho and r
+	 */
+	double[] getRatesSnapshot(){
+
+		double[][] rates = new double[][]{times, birth, death, psi, b_ij, M, rho, r};
+
+		int length = 1;
+		for (double[] rate : rates)
+			if (rate != null) length += rate.length;
+
+		double[] snapshot = new double[length];
+		snapshot[0] = T;
+
+		int k = 1;
+		for (double[] rate : rates) {
+			if (rate == null) continue;
+			System.arraycopy(rate, 0, snapshot, k, rate.length);
+			k += rate.length;
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Start the traversal of a subtree in the fork/join pool, the result is then obtained with join().
+	 * From a worker of the pool the task is forked so that idle workers can steal it.
+	 * @param traversal
+	 */
+	void forkTraversal(TraversalService traversal) {
+		if (statistics != null) statistics.increment(Counter.FORKED_TASKS);
+		if (ForkJoinTask.getPool() == pool)
+			traversal.fork();
+		else
+			pool.execute(traversal);
 	}
 
-	abstract class TraversalService implements Callable<p0ge_InitialConditions> {
+	/**
+	 * Point the ODE of the calling thread at the p0 solution of this evaluation and start a new traversal,
+	 * after which the ODEs of the other threads are pointed at the rates when they run their first task.
+	 * Must be called once the rates and the p0 solution are up to date, before the traversal of the tree.
+	 */
+	void startTraversal() {
+
+		if (sharedP0Input.get()) PG.setP0DenseOutput(pDenseOutput);
+		traversalCount++;
+	}
+
+	abstract class TraversalService extends RecursiveTask<p0ge_InitialConditions> {
+		private static final long serialVersionUID = 1L;
 
 		protected Node rootSubtree;
 		protected double from;
 		protected double to;
 		protected p0ge_ODE PG;
-		protected FirstOrderIntegrator pg_integrator;
 
-		public TraversalService(Node root, double from, double to, boolean augmented) {
+		// creation time of the task, to measure how long it waits for a thread
+		protected long created;
+
+		public TraversalService(Node root, double from, double to) {
 			this.rootSubtree = root;
 			this.from = from;
 			this.to = to;
-			this.setupODEs(augmented);
-		}
-
-		private void setupODEs(boolean augmented){  // set up ODE's and integrators
-
-			//TODO set minstep and maxstep to be PiecewiseBDDistr fields
-			if (minstep == null) minstep = T*1e-100;
-			if (maxstep == null) maxstep = T/10;
-
-			PG = new p0ge_ODE(birth, ((birthAmongDemes) ? b_ij : null), death,psi,M, n, totalIntervals, T, times, P, maxEvaluations.get(), augmented);
-
-			p0ge_ODE.globalPrecisionThreshold = globalPrecisionThreshold;
-
-			pg_integrator = new DormandPrince54Integrator(minstep, maxstep, absoluteTolerance.get(), relativeTolerance.get());
+			if (statistics != null) created = System.nanoTime();
 		}
 
 		abstract protected p0ge_InitialConditions calculateSubtreeLikelihoodInThread();
 
 		@Override
-		public p0ge_InitialConditions call() throws Exception {
+		protected p0ge_InitialConditions compute() {
+			if (statistics != null) statistics.addTimeSince(Counter.QUEUE_WAIT_TIME, created);
+
+			// the ODE of the thread running the task is used
+			PG = workspaces.get().getODE();
+
 			// traverse the tree in a potentially-parallelized way
 			return calculateSubtreeLikelihoodInThread();
 		}
@@ -0,0 +1,11 @@
+package beast.math;
+
+/**
+ * Differential equations made of independent blocks of equal dimension, so that their Jacobian is block diagonal.
+ * Block k contains the equations k*getBlockDimension() .. (k+1)*getBlockDimension()-1.
+ * Used by RosenbrockIntegrator to only compute and factorize the diagonal blocks of the Jacobian.
+ */
+public interface BlockDiagonalEquations {
+
+	int getBlockDimension();
+}
@@ -0,0 +1,101 @@
+package beast.math;
+
+import org.apache.commons.math3.ode.AbstractIntegrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Counters and timers of the likelihood calculation, updated by all threads of a distribution.
+ * They are only allocated when the instrumentation is switched on, so that the calculation does not pay for them otherwise.
+ * Times are in nanoseconds, summed over the threads.
+ */
+public class IntegrationStatistics {
+
+	public enum Counter {
+		DERIVATIVE_EVALUATIONS("derivativeEvaluations"),
+		ACCEPTED_STEPS("acceptedSteps"),
+		INTERVAL_SPLITS("intervalSplits"),
+		RESCALINGS("rescalings"),
+		FORKED_TASKS("forkedTasks"),
+		P0_TIME("p0Time"),
+		BRANCH_TIME("branchTime"),
+		COMBINATION_TIME("combinationTime"),
+		QUEUE_WAIT_TIME("queueWaitTime");
+
+		final String label;
+
+		Counter(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+
+		public boolean isTime() {
+			return label.endsWith("Time");
+		}
+	}
+
+	LongAdder[] values;
+
+
+	public IntegrationStatistics() {
+
+		values = new LongAdder[Counter.values().length];
+		for (int i = 0; i < values.length; i++) values[i] = new LongAdder();
+	}
+
+	public void increment(Counter counter) {
+		values[counter.ordinal()].increment();
+	}
+
+	public void add(Counter counter, long value) {
+		values[counter.ordinal()].add(value);
+	}
+
+	/**
+	 * Add the time elapsed since start to a timer
+	 * @param counter
+	 * @param start from System.nanoTime()
+	 */
+	public void addTimeSince(Counter counter, long start) {
+		values[counter.ordinal()].add(System.nanoTime() - start);
+	}
+
+	/**
+	 * @param integrator
+	 * @return a step handler counting the accepted steps of the integrator, and its derivative evaluations at the end
+	 * of each integration
+	 */
+	public StepHandler createStepCounter(final AbstractIntegrator integrator) {
+
+		return new StepHandler() {
+
+			@Override
+			public void init(double t0, double[] y0, double t) {
+			}
+
+			@Override
+			public void handleStep(StepInterpolator interpolator, boolean isLast) {
+				increment(Counter.ACCEPTED_STEPS);
+				if (isLast) add(Counter.DERIVATIVE_EVALUATIONS, integrator.getEvaluations());
+			}
+		};
+	}
+
+	public long get(Counter counter) {
+		return values[counter.ordinal()].sum();
+	}
+
+	/**
+	 * @param counter
+	 * @return the value of the counter, which is set back to zero
+	 */
+	public long getAndReset(Counter counter) {
+		return values[counter.ordinal()].sumThenReset();
+	}
+}
@@ -0,0 +1,399 @@
+package beast.math;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.exception.NoBracketingException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.ode.EquationsMapper;
+import org.apache.commons.math3.ode.ExpandableStatefulODE;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
+import org.apache.commons.math3.ode.sampling.AbstractStepInterpolator;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+
+/**
+ * Linearly implicit integrator for stiff equations, with the two-stage Rosenbrock method ROS2
+ * (Verwer, Spee, Blom and Hundsdorfer, 1999). The method is L-stable and of order 2 whatever the matrix J used as Jacobian:
+ *
+ * (I - gamma h J) k1 = f(t, y)
+ * (I - gamma h J) k2 = f(t + h, y + h k1) - 2 k1
+ * y(t + h) = y + 3/2 h k1 + 1/2 h k2, with gamma = 1 + 1/sqrt(2)
+ *
+ * The local error is the difference with the Euler step y + h k1, the step size control is the same as in the
+ * embedded Runge-Kutta integrators of commons math (scalar or vector tolerances, min and max step).
+ * J is computed by finite differences at the start of each step. For BlockDiagonalEquations only the diagonal blocks
+ * are computed (one evaluation of the equations per column of a block) and factorized.
+ * Step handlers get a cubic Hermite interpolation between both ends of the step.
+ */
+public class RosenbrockIntegrator extends AdaptiveStepsizeIntegrator {
+
+	private static final String METHOD_NAME = "Rosenbrock ROS2";
+
+	private static final double gamma = 1. + 1. / Math.sqrt(2.);
+
+	private static final double safety = 0.9;
+	private static final double minReduction = 0.2;
+	private static final double maxGrowth = 5.;
+
+	// size of the perturbations of the finite difference Jacobian, relative to the largest value of the block
+	private static final double jacobianDelta = Math.sqrt(Math.ulp(1.));
+
+
+	public RosenbrockIntegrator(double minStep, double maxStep, double scalAbsoluteTolerance, double scalRelativeTolerance) {
+		super(METHOD_NAME, minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+	}
+
+	public RosenbrockIntegrator(double minStep, double maxStep, double[] vecAbsoluteTolerance, double[] vecRelativeTolerance) {
+		super(METHOD_NAME, minStep, maxStep, vecAbsoluteTolerance, vecRelativeTolerance);
+	}
+
+	@Override
+	public void integrate(ExpandableStatefulODE equations, double t) throws NumberIsTooSmallException, DimensionMismatchException, MaxCountExceededException, NoBracketingException {
+
+		sanityChecks(equations, t);
+		setEquations(equations);
+		boolean forward = t > equations.getTime();
+
+		double[] y = equations.getCompleteState();
+		int dimension = y.length;
+
+		int b = (equations.getPrimary() instanceof BlockDiagonalEquations) ?
+				((BlockDiagonalEquations) equations.getPrimary()).getBlockDimension() : dimension;
+		if (b <= 0 || dimension % b != 0) b = dimension;
+		int blocks = dimension / b;
+
+		double[] yDot = new double[dimension];
+		double[] yTmp = new double[dimension];
+		double[] yDotTmp = new double[dimension];
+		double[] yPrevious = new double[dimension];
+		double[] yDotPrevious = new double[dimension];
+		double[] k1 = new double[dimension];
+		double[] k2 = new double[dimension];
+		double[] scale = new double[mainSetDimension];
+
+		double[][] jacobian = new double[blocks][b * b];
+		double[][] lu = new double[blocks][b * b];
+		int[][] pivots = new int[blocks][b];
+
+		RosenbrockStepInterpolator interpolator = new RosenbrockStepInterpolator();
+		interpolator.reinitialize(y, yPrevious, yDotPrevious, yDot, forward, equations.getPrimaryMapper(), equations.getSecondaryMappers());
+		interpolator.storeTime(equations.getTime());
+
+		stepStart = equations.getTime();
+		initIntegration(equations.getTime(), y, t);
+
+		computeDerivatives(stepStart, y, yDot);
+
+		for (int i = 0; i < mainSetDimension; i++)
+			scale[i] = (vecAbsoluteTolerance == null) ?
+					scalAbsoluteTolerance + scalRelativeTolerance * Math.abs(y[i]) :
+					vecAbsoluteTolerance[i] + vecRelativeTolerance[i] * Math.abs(y[i]);
+
+		double hNew = initializeStep(forward, 2, scale, stepStart, y, yDot, yTmp, yDotTmp);
+		double error = 0.;
+
+		isLastStep = false;
+		do {
+
+			interpolator.shift();
+
+			computeJacobian(stepStart, y, yDot, yTmp, yDotTmp, jacobian, b);
+
+			error = 10.;
+			while (error >= 1.) {
+
+				stepSize = hNew;
+				if (forward ? (stepStart + stepSize >= t) : (stepStart + stepSize <= t)) stepSize = t - stepStart;
+
+				if (!factorize(jacobian, lu, pivots, gamma * stepSize, b)) {
+					hNew = filterStep(stepSize * minReduction, forward, false);
+					continue;
+				}
+
+				System.arraycopy(yDot, 0, k1, 0, dimension);
+				solve(lu, pivots, k1, b);
+
+				for (int i = 0; i < dimension; i++) yTmp[i] = y[i] + stepSize * k1[i];
+				computeDerivatives(stepStart + stepSize, yTmp, yDotTmp);
+
+				for (int i = 0; i < dimension; i++) k2[i] = yDotTmp[i] - 2. * k1[i];
+				solve(lu, pivots, k2, b);
+
+				for (int i = 0; i < dimension; i++) yTmp[i] = y[i] + stepSize * (1.5 * k1[i] + 0.5 * k2[i]);
+
+				error = estimateError(y, yTmp, k1, k2, stepSize);
+
+				if (error >= 1.) {
+					double factor = Math.min(maxGrowth, Math.max(minReduction, safety / Math.sqrt(error)));
+					hNew = filterStep(stepSize * factor, forward, false);
+				}
+			}
+
+			// the interpolator goes from the previous to the new state
+			System.arraycopy(y, 0, yPrevious, 0, dimension);
+			System.arraycopy(yDot, 0, yDotPrevious, 0, dimension);
+			System.arraycopy(yTmp, 0, y, 0, dimension);
+			computeDerivatives(stepStart + stepSize, y, yDot);
+
+			interpolator.storeTime(stepStart + stepSize);
+			stepStart = acceptStep(interpolator, y, yDot, t);
+
+			if (!isLastStep) {
+
+				interpolator.storeTime(stepStart);
+
+				double factor = Math.min(maxGrowth, Math.max(minReduction, safety / Math.sqrt(error)));
+				double scaledH = stepSize * factor;
+				double nextT = stepStart + scaledH;
+				boolean nextIsLast = forward ? (nextT >= t) : (nextT <= t);
+				hNew = filterStep(scaledH, forward, nextIsLast);
+
+				double filteredNextT = stepStart + hNew;
+				boolean filteredNextIsLast = forward ? (filteredNextT >= t) : (filteredNextT <= t);
+				if (filteredNextIsLast) hNew = t - stepStart;
+			}
+
+		} while (!isLastStep);
+
+		equations.setTime(stepStart);
+		equations.setCompleteState(y);
+
+		resetInternalState();
+	}
+
+	/**
+	 * Root mean square of the local error, relative to the tolerances
+	 */
+	protected double estimateError(double[] y0, double[] y1, double[] k1, double[] k2, double h) {
+
+		double error = 0.;
+
+		for (int i = 0; i < mainSetDimension; i++) {
+
+			double yScale = Math.max(Math.abs(y0[i]), Math.abs(y1[i]));
+			double tolerance = (vecAbsoluteTolerance == null) ?
+					scalAbsoluteTolerance + scalRelativeTolerance * yScale :
+					vecAbsoluteTolerance[i] + vecRelativeTolerance[i] * yScale;
+
+			double ratio = 0.5 * h * (k1[i] + k2[i]) / tolerance;
+			error += ratio * ratio;
+		}
+
+		return Math.sqrt(error / mainSetDimension);
+	}
+
+	/**
+	 * Diagonal blocks of the Jacobian by forward differences, column j of all blocks is obtained with a single evaluation
+	 * @param t
+	 * @param y
+	 * @param yDot derivatives at y
+	 * @param yPerturbed work array
+	 * @param yDotPerturbed work array
+	 * @param jacobian blocks of the Jacobian, stored row by row
+	 * @param b block dimension
+	 */
+	private void computeJacobian(double t, double[] y, double[] yDot, double[] yPerturbed, double[] yDotPerturbed, double[][] jacobian, int b) {
+
+		int blocks = jacobian.length;
+
+		System.arraycopy(y, 0, yPerturbed, 0, y.length);
+
+		for (int j = 0; j < b; j++) {
+
+			for (int k = 0; k < blocks; k++) {
+
+				double max = 0.;
+				for (int i = k * b; i < (k + 1) * b; i++) max = Math.max(max, Math.abs(y[i]));
+
+				yPerturbed[k * b + j] = y[k * b + j] + jacobianDelta * ((max > 0.) ? max : 1.);
+			}
+
+			computeDerivatives(t, yPerturbed, yDotPerturbed);
+
+			for (int k = 0; k < blocks; k++) {
+
+				int column = k * b + j;
+				double delta = yPerturbed[column] - y[column];
+
+				for (int i = 0; i < b; i++)
+					jacobian[k][i * b + j] = (yDotPerturbed[k * b + i] - yDot[k * b + i]) / delta;
+
+				yPerturbed[column] = y[column];
+			}
+		}
+	}
+
+	/**
+	 * LU decomposition with partial pivoting of each block of I - gammaH J
+	 * @return false if a block is singular
+	 */
+	private boolean factorize(double[][] jacobian, double[][] lu, int[][] pivots, double gammaH, int b) {
+
+		for (int k = 0; k < jacobian.length; k++) {
+
+			double[] a = lu[k];
+			int[] pivot = pivots[k];
+
+			for (int i = 0; i < b * b; i++) a[i] = -gammaH * jacobian[k][i];
+			for (int i = 0; i < b; i++) a[i * b + i] += 1.;
+
+			for (int c = 0; c < b; c++) {
+
+				int p = c;
+				double max = Math.abs(a[c * b + c]);
+				for (int r = c + 1; r < b; r++) {
+					if (Math.abs(a[r * b + c]) > max) {
+						max = Math.abs(a[r * b + c]);
+						p = r;
+					}
+				}
+
+				if (max == 0.) return false;
+
+				pivot[c] = p;
+				if (p != c) {
+					for (int l = 0; l < b; l++) {
+						double tmp = a[c * b + l];
+						a[c * b + l] = a[p * b + l];
+						a[p * b + l] = tmp;
+					}
+				}
+
+				for (int r = c + 1; r < b; r++) {
+					double factor = a[r * b + c] / a[c * b + c];
+					a[r * b + c] = factor;
+					if (factor != 0.)
+						for (int l = c + 1; l < b; l++) a[r * b + l] -= factor * a[c * b + l];
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Solve the factorized systems of all blocks, in place
+	 */
+	private void solve(double[][] lu, int[][] pivots, double[] x, int b) {
+
+		for (int k = 0; k < lu.length; k++) {
+
+			double[] a = lu[k];
+			int[] pivot = pivots[k];
+			int offset = k * b;
+
+			for (int c = 0; c < b; c++) {
+
+				int p = pivot[c];
+				if (p != c) {
+					double tmp = x[offset + c];
+					x[offset + c] = x[offset + p];
+					x[offset + p] = tmp;
+				}
+
+				double v = x[offset + c];
+				for (int r = c + 1; r < b; r++) x[offset + r] -= a[r * b + c] * v;
+			}
+
+			for (int c = b - 1; c >= 0; c--) {
+
+				double v = x[offset + c];
+				for (int l = c + 1; l < b; l++) v -= a[c * b + l] * x[offset + l];
+				x[offset + c] = v / a[c * b + c];
+			}
+		}
+	}
+
+	/**
+	 * Cubic Hermite interpolation between the states and derivatives at both ends of the step
+	 */
+	public static class RosenbrockStepInterpolator extends AbstractStepInterpolator {
+		private static final long serialVersionUID = 1L;
+
+		double[] previousState;
+		double[] previousDerivatives;
+		double[] currentDerivatives;
+
+		public RosenbrockStepInterpolator() {
+			super();
+		}
+
+		RosenbrockStepInterpolator(RosenbrockStepInterpolator interpolator) {
+
+			super(interpolator);
+
+			if (interpolator.previousState != null) {
+				previousState = interpolator.previousState.clone();
+				previousDerivatives = interpolator.previousDerivatives.clone();
+				currentDerivatives = interpolator.currentDerivatives.clone();
+			}
+		}
+
+		void reinitialize(double[] y, double[] yPrevious, double[] yDotPrevious, double[] yDot, boolean forward,
+						  EquationsMapper primaryMapper, EquationsMapper[] secondaryMappers) {
+
+			reinitialize(y, forward, primaryMapper, secondaryMappers);
+
+			previousState = yPrevious;
+			previousDerivatives = yDotPrevious;
+			currentDerivatives = yDot;
+		}
+
+		@Override
+		protected StepInterpolator doCopy() {
+			return new RosenbrockStepInterpolator(this);
+		}
+
+		@Override
+		protected void computeInterpolatedStateAndDerivatives(double theta, double oneMinusThetaH) {
+
+			double theta2 = theta * theta;
+			double theta3 = theta2 * theta;
+
+			// Hermite basis functions and their derivatives with respect to theta
+			double h00 = 2 * theta3 - 3 * theta2 + 1;
+			double h10 = theta3 - 2 * theta2 + theta;
+			double h01 = -2 * theta3 + 3 * theta2;
+			double h11 = theta3 - theta2;
+
+			double d00 = 6 * theta2 - 6 * theta;
+			double d10 = 3 * theta2 - 4 * theta + 1;
+			double d11 = 3 * theta2 - 2 * theta;
+
+			for (int i = 0; i < interpolatedState.length; i++) {
+
+				interpolatedState[i] = h00 * previousState[i] + h10 * h * previousDerivatives[i]
+						+ h01 * currentState[i] + h11 * h * currentDerivatives[i];
+
+				interpolatedDerivatives[i] = (h == 0.) ? currentDerivatives[i] :
+						d00 * (previousState[i] - currentState[i]) / h + d10 * previousDerivatives[i] + d11 * currentDerivatives[i];
+			}
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+
+			writeBaseExternal(out);
+
+			out.writeObject(previousState);
+			out.writeObject(previousDerivatives);
+			out.writeObject(currentDerivatives);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+
+			double t = readBaseExternal(in);
+
+			previousState = (double[]) in.readObject();
+			previousDerivatives = (double[]) in.readObject();
+			currentDerivatives = (double[]) in.readObject();
+
+			setInterpolatedTime(t);
+		}
+	}
+}
@@ -145,6 +145,66 @@ public class SmallNumberScaler {
 		return new ScaledNumbers(scalingFactor, scaledEquation);
 	}
 
+	/**
+	 * Scale the ge conditions by a single power of two, chosen so that the largest value has an exponent of 0,
+	 * as done with the per-branch scale factors of BEAGLE. The factor is found in a single pass.
+	 * Values more than about 1070 orders of magnitude (in base 2) below the largest one become zero when multiplied,
+	 * instead of being set to zero one exponent after the other as in scale().
+	 * @param conditions
+	 * @return
+	 */
+	public static ScaledNumbers scaleByMaximum(p0ge_InitialConditions conditions) {
+
+		double[] pConditions = conditions.getConditionsOnP();
+		SmallNumber[] geConditions = conditions.getConditionsOnG();
+		int n = pConditions.length;
+
+		double[] scaledEquation = new double[2*n];
+		System.arraycopy(pConditions, 0, scaledEquation, 0, n);
+
+		int maxExponent = Integer.MIN_VALUE;
+		for (int i = 0; i < geConditions.length; i++)
+			if (geConditions[i].getMantissa() != 0) maxExponent = Math.max(maxExponent, geConditions[i].getExponent());
+
+		// all values are zero
+		if (maxExponent == Integer.MIN_VALUE) return new ScaledNumbers(0, scaledEquation);
+
+		for (int i = 0; i < geConditions.length; i++)
+			scaledEquation[i+n] = multiplyByPowerOfTwo(geConditions[i].getMantissa(), geConditions[i].getExponent() - maxExponent);
+
+		return new ScaledNumbers(-maxExponent, scaledEquation);
+	}
+
+	/**
+	 * Convert the ge conditions to doubles without scaling them, if all non-zero values have an exponent between
+	 * minExponent and the largest exponent of a double. Below minExponent, the absolute tolerance of the integrators
+	 * would no longer control the error on the values.
+	 * @param conditions
+	 * @param minExponent
+	 * @return the conditions with a scaling factor of 0, or null if they must be scaled
+	 */
+	public static ScaledNumbers convertWithoutScaling(p0ge_InitialConditions conditions, int minExponent) {
+
+		double[] pConditions = conditions.getConditionsOnP();
+		SmallNumber[] geConditions = conditions.getConditionsOnG();
+		int n = pConditions.length;
+
+		double[] scaledEquation = new double[2*n];
+		System.arraycopy(pConditions, 0, scaledEquation, 0, n);
+
+		for (int i = 0; i < geConditions.length; i++) {
+
+			if (geConditions[i].getMantissa() == 0) continue;
+
+			int exponent = geConditions[i].getExponent();
+			if (exponent < minExponent || exponent > exponentMaxValueDouble) return null;
+
+			scaledEquation[i+n] = multiplyByPowerOfTwo(geConditions[i].getMantissa(), exponent);
+		}
+
+		return new ScaledNumbers(0, scaledEquation);
+	}
+
 	/**
 	 * Retrieve values of accurate magnitude from the 'scaled' ones.
 	 * @param numbers
@@ -0,0 +1,160 @@
+package beast.math;
+
+import beast.core.Description;
+
+/**
+ * Created by Jeremie Scire (jscire)
+ */
+
+@Description("Mutable vector of numbers in scientific representation, stored as parallel arrays of mantissas and exponents."
+		+ " The operations are done in place and give the same results as the corresponding SmallNumber operations, without creating intermediate objects.")
+public class SmallNumberVector {
+
+	double[] mantissa;
+	int[] exponent;
+	int dimension;
+
+	// temporary number, used by the fused operations
+	private double tempMantissa;
+	private int tempExponent;
+
+	public SmallNumberVector(int dimension) {
+		this.dimension = dimension;
+		mantissa = new double[dimension];
+		exponent = new int[dimension];
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	public double getMantissa(int i) {
+		return mantissa[i];
+	}
+
+	public int getExponent(int i) {
+		return exponent[i];
+	}
+
+	/**
+	 * @param i
+	 * @return a new SmallNumber holding element i
+	 */
+	public SmallNumber get(int i) {
+		return new SmallNumber(mantissa[i], exponent[i]);
+	}
+
+	/**
+	 * Set element i to a*b*lambda, as SmallNumber.multiply(a, b).scalarMultiply(lambda)
+	 * @param i
+	 * @param a
+	 * @param b
+	 * @param lambda
+	 */
+	public void setProduct(int i, SmallNumber a, SmallNumber b, double lambda) {
+
+		if (Double.isInfinite(lambda))
+			throw new RuntimeException("Unauthorized number (Infinity) used for multiplication with a SmallNumber");
+
+		multiply(a, b);
+		set(i, tempMantissa * lambda, tempExponent);
+	}
+
+	/**
+	 * Add (a*b + c*d)*lambda to element i, as
+	 * SmallNumber.add(x_i, SmallNumber.add(SmallNumber.multiply(a, b), SmallNumber.multiply(c, d)).scalarMultiply(lambda))
+	 * @param i
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @param d
+	 * @param lambda
+	 */
+	public void addProductSum(int i, SmallNumber a, SmallNumber b, SmallNumber c, SmallNumber d, double lambda) {
+
+		if (Double.isInfinite(lambda))
+			throw new RuntimeException("Unauthorized number (Infinity) used for multiplication with a SmallNumber");
+
+		multiply(a, b);
+		double abMantissa = tempMantissa;
+		int abExponent = tempExponent;
+
+		multiply(c, d);
+		add(abMantissa, abExponent, tempMantissa, tempExponent);
+
+		normalize(tempMantissa * lambda, tempExponent);
+		add(mantissa[i], exponent[i], tempMantissa, tempExponent);
+
+		mantissa[i] = tempMantissa;
+		exponent[i] = tempExponent;
+	}
+
+	/**
+	 * Copy the vector into an array of new SmallNumbers
+	 * @param result
+	 */
+	public void copyTo(SmallNumber[] result) {
+		for (int i = 0; i < dimension; i++)
+			result[i] = new SmallNumber(mantissa[i], exponent[i]);
+	}
+
+	private void set(int i, double m, int exp) {
+		normalize(m, exp);
+		mantissa[i] = tempMantissa;
+		exponent[i] = tempExponent;
+	}
+
+	/**
+	 * Store a*b in the temporary number, see SmallNumber.multiply
+	 */
+	private void multiply(SmallNumber a, SmallNumber b) {
+		if (a.getMantissa() == 0 || b.getMantissa() == 0) {
+			tempMantissa = 0;
+			tempExponent = 0;
+		} else {
+			normalize(a.getMantissa() * b.getMantissa(), a.getExponent() + b.getExponent());
+		}
+	}
+
+	/**
+	 * Store the sum of two numbers in the temporary number, see SmallNumber.add
+	 */
+	private void add(double aMantissa, int aExponent, double bMantissa, int bExponent) {
+
+		if (aMantissa == 0 || ((bExponent - aExponent) > SmallNumber.approximationThreshold && bMantissa != 0)) {
+			tempMantissa = bMantissa;
+			tempExponent = bExponent;
+		} else if (bMantissa == 0 || (aExponent - bExponent) > SmallNumber.approximationThreshold) {
+			tempMantissa = aMantissa;
+			tempExponent = aExponent;
+		} else if (aExponent > bExponent) {
+			normalize(aMantissa + bMantissa * Math.pow(2, bExponent - aExponent), aExponent);
+		} else {
+			normalize(bMantissa + aMantissa * Math.pow(2, aExponent - bExponent), bExponent);
+		}
+	}
+
+	/**
+	 * Store m*2^exp in the temporary number, in the representation given by SmallNumber.update
+	 */
+	private void normalize(double m, int exp) {
+
+		if (Double.isInfinite(m))
+			throw new RuntimeException("Unauthorized number (Infinity) used for conversion in SmallNumber");
+
+		if (m == 0) {
+			tempMantissa = 0;
+			tempExponent = 0;
+		} else {
+			int tempExp = Math.getExponent(m);
+
+			if (Math.abs(tempExp) > 200) { //same threshold as in SmallNumber.update
+				m *= Math.pow(2, -tempExp);
+				exp += tempExp;
+			}
+
+			tempMantissa = m;
+			tempExponent = exp;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package beast.math;
+
+import beast.core.util.Utils;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.nonstiff.AdaptiveStepsizeIntegrator;
+
+import java.util.Arrays;
+
+
+/**
+ * Propagators of the ge equations on a fixed time grid.
+ * Given p0, the ge equations are linear: ge(t0) = Phi(t0, t1) ge(t1) for t0 < t1.
+ * Each epoch between two change times is split into cells of equal width, and the n x n propagator of each cell
+ * is computed once per parameter state, by integrating the ge equations with the columns of the identity as initial conditions.
+ * Along a branch, ge is then obtained by multiplying the propagators of the cells the branch covers.
+ * Once computed, the propagators are only read, so they can be used by several threads at the same time.
+ */
+public class ge_Propagators implements FirstOrderDifferentialEquations, BlockDiagonalEquations {
+
+	p0ge_ODE PG;
+	int dimension;
+	int intervals;
+	double T;
+	double[] times;
+
+	// lower end, cell width, index of the first cell and number of cells of each epoch
+	double[] epochStart;
+	double[] cellWidth;
+	int[] epochFirstCell;
+	int[] epochCellCount;
+
+	// propagator of each cell, stored row by row
+	double[][] propagators;
+
+	double[] column;
+	double[] columnDot;
+
+	final static double globalPrecisionThreshold = p0ge_ODE.globalPrecisionThreshold;
+
+
+	/**
+	 * @param PG ge equations, with p0 read from a shared dense output
+	 * @param dimension
+	 * @param intervals
+	 * @param T
+	 * @param times
+	 */
+	public ge_Propagators(p0ge_ODE PG, int dimension, int intervals, double T, double[] times) {
+
+		if (PG.getP0DenseOutput() == null)
+			throw new RuntimeException("The ge propagators need the shared p0 solution");
+
+		this.PG = PG;
+		this.dimension = dimension;
+		this.intervals = intervals;
+		this.T = T;
+		this.times = times;
+
+		epochStart = new double[intervals];
+		cellWidth = new double[intervals];
+		epochFirstCell = new int[intervals];
+		epochCellCount = new int[intervals];
+
+		column = new double[dimension];
+		columnDot = new double[dimension];
+	}
+
+	/**
+	 * Compute the propagators of all cells
+	 * @param steps number of cells between 0 and T, the cells of each epoch are at most T/steps wide
+	 * @param integrator
+	 */
+	public void compute(int steps, AdaptiveStepsizeIntegrator integrator) {
+
+		int last = Utils.index(T, times, intervals);
+		double maxWidth = T / steps;
+		int cellCount = 0;
+
+		for (int epoch = 0; epoch < intervals; epoch++) {
+
+			double from = (epoch > 0) ? times[epoch - 1] : 0.;
+			double to = (epoch == last) ? T : times[epoch];
+
+			epochStart[epoch] = from;
+			epochFirstCell[epoch] = cellCount;
+
+			if (epoch > last || to - from < globalPrecisionThreshold) {
+				epochCellCount[epoch] = 0;
+				cellWidth[epoch] = 0.;
+			} else {
+				epochCellCount[epoch] = (int) Math.ceil((to - from) / maxWidth - globalPrecisionThreshold);
+				cellWidth[epoch] = (to - from) / epochCellCount[epoch];
+				cellCount += epochCellCount[epoch];
+			}
+		}
+
+		propagators = new double[cellCount][];
+
+		double[] y = new double[dimension * dimension];
+
+		try {
+
+			for (int epoch = 0; epoch <= last; epoch++) {
+
+				PG.setEpoch(epoch);
+
+				for (int k = 0; k < epochCellCount[epoch]; k++) {
+
+					// column c of the propagator is stored at y[c*dimension .. (c+1)*dimension-1]
+					Arrays.fill(y, 0.);
+					for (int c = 0; c < dimension; c++) y[c * dimension + c] = 1.;
+
+					integrator.integrate(this, getGridTime(epoch, k + 1), y, getGridTime(epoch, k), y);
+
+					double[] propagator = new double[dimension * dimension];
+					for (int i = 0; i < dimension; i++)
+						for (int c = 0; c < dimension; c++)
+							propagator[i * dimension + c] = y[c * dimension + i];
+
+					propagators[epochFirstCell[epoch] + k] = propagator;
+				}
+			}
+
+		} catch (Exception e) {
+
+			throw new RuntimeException("couldn't calculate the ge propagators", e);
+		}
+	}
+
+	/**
+	 * @param epoch
+	 * @param k
+	 * @return time of grid point k of the epoch, grid point 0 is the lower end of the epoch
+	 */
+	public double getGridTime(int epoch, int k) {
+		return epochStart[epoch] + k * cellWidth[epoch];
+	}
+
+	/**
+	 * @param t
+	 * @param epoch
+	 * @return index of the highest grid point of the epoch at or below t
+	 */
+	public int getGridIndexBelow(double t, int epoch) {
+		if (epochCellCount[epoch] == 0) return 0;
+		int k = (int) Math.floor((t - epochStart[epoch]) / cellWidth[epoch] + globalPrecisionThreshold);
+		return Math.max(0, Math.min(k, epochCellCount[epoch]));
+	}
+
+	/**
+	 * @param t
+	 * @param epoch
+	 * @return index of the lowest grid point of the epoch at or above t
+	 */
+	public int getGridIndexAbove(double t, int epoch) {
+		if (epochCellCount[epoch] == 0) return 0;
+		int k = (int) Math.ceil((t - epochStart[epoch]) / cellWidth[epoch] - globalPrecisionThreshold);
+		return Math.max(0, Math.min(k, epochCellCount[epoch]));
+	}
+
+	/**
+	 * Multiply ge by the propagator of cell k of the epoch (between grid points k and k+1), in place
+	 * @param epoch
+	 * @param k
+	 * @param ge
+	 * @param offset index of the first ge value in the array
+	 * @param buffer array of length at least dimension
+	 */
+	public void propagate(int epoch, int k, double[] ge, int offset, double[] buffer) {
+
+		double[] propagator = propagators[epochFirstCell[epoch] + k];
+
+		for (int i = 0; i < dimension; i++) {
+			double sum = 0.;
+			for (int c = 0; c < dimension; c++)
+				sum += propagator[i * dimension + c] * ge[offset + c];
+			buffer[i] = sum;
+		}
+
+		System.arraycopy(buffer, 0, ge, offset, dimension);
+	}
+
+	@Override
+	public int getDimension() {
+		return dimension * dimension;
+	}
+
+	/**
+	 * The columns of the propagator are independent
+	 */
+	@Override
+	public int getBlockDimension() {
+		return dimension;
+	}
+
+	/**
+	 * Derivatives of the propagator: the ge equations applied to each column
+	 */
+	@Override
+	public void computeDerivatives(double t, double[] y, double[] yDot) {
+
+		for (int c = 0; c < dimension; c++) {
+			System.arraycopy(y, c * dimension, column, 0, dimension);
+			PG.computeDerivatives(t, column, columnDot);
+			System.arraycopy(columnDot, 0, yDot, c * dimension, dimension);
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package beast.math;
+
+import beast.core.util.Utils;
+import org.apache.commons.math3.exception.MaxCountExceededException;
+import org.apache.commons.math3.ode.FirstOrderIntegrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Continuous solution of the p0 equations, obtained by a single integration from T (present) to 0 (origin).
+ * Each step of the integrator is stored as a quintic Hermite polynomial, built from the values and derivatives
+ * of the step interpolator at the start, middle and end of the step.
+ * At each change time the solution jumps by the factor (1-rho), exactly as in p0ge_ODE.getP.
+ * Lookups only read the stored coefficients, so getP can be called from several threads at the same time.
+ */
+public class p0_DenseOutput implements StepHandler {
+
+	p0_ODE P;
+	int dimension;
+	int intervals;
+	double T;
+	double[] times;
+
+	// value of p0 at the start (upper end) of each epoch, after the rho-sampling jump
+	double[][] epochStartValues;
+
+	// index of the first step of each epoch and number of steps in it
+	int[] epochFirstStep;
+	int[] epochStepCount;
+
+	int stepCount;
+
+	// end time of each step (steps are stored in decreasing time order)
+	double[] stepEndTimes;
+
+	// interpolation nodes {t0, t0, tm, tm, t1, t1} and Newton coefficients of each step
+	double[][] stepNodes;
+	double[][] stepCoefficients;
+
+	double[] stateMid;
+	double[] derivativesStart;
+	double[] derivativesMid;
+
+	final static double globalPrecisionThreshold = p0ge_ODE.globalPrecisionThreshold;
+
+
+	public p0_DenseOutput(p0_ODE P, int dimension, int intervals, double T, double[] times) {
+
+		this.P = P;
+		this.dimension = dimension;
+		this.intervals = intervals;
+		this.T = T;
+		this.times = times;
+
+		epochStartValues = new double[intervals][];
+		epochFirstStep = new int[intervals];
+		epochStepCount = new int[intervals];
+
+		stepEndTimes = new double[16];
+		stepNodes = new double[16][];
+		stepCoefficients = new double[16][];
+
+		stateMid = new double[dimension];
+		derivativesStart = new double[dimension];
+		derivativesMid = new double[dimension];
+	}
+
+	/**
+	 * Integrate the p0 equations from T to 0, one epoch after the other, and store the dense output
+	 * @param integrator
+	 * @param rhoSampling if true, p0 is multiplied by (1-rho) at each change time
+	 * @param rho
+	 */
+	public void integrate(FirstOrderIntegrator integrator, Boolean rhoSampling, double[] rho) {
+
+		stepCount = 0;
+
+		double[] y = new double[dimension];
+
+		int last = Utils.index(T, times, intervals);
+
+		for (int i = 0; i < dimension; i++)
+			y[i] = rhoSampling ? (1 - rho[i * intervals + last]) : 1.;
+
+		// the other step handlers of the integrator, such as the counters of the instrumentation, are kept
+		List<StepHandler> otherHandlers = new ArrayList<>(integrator.getStepHandlers());
+
+		integrator.addStepHandler(this);
+
+		try {
+
+			for (int epoch = last; epoch >= 0; epoch--) {
+
+				double to = (epoch == last) ? T : times[epoch];
+				double from = (epoch > 0) ? times[epoch - 1] : 0.;
+
+				epochStartValues[epoch] = y.clone();
+				epochFirstStep[epoch] = stepCount;
+
+				if (Math.abs(from - to) > globalPrecisionThreshold) {
+					P.setEpoch(epoch);
+					integrator.integrate(P, to, y, from, y);
+				}
+
+				epochStepCount[epoch] = stepCount - epochFirstStep[epoch];
+
+				if (rhoSampling && epoch > 0) {
+					for (int i = 0; i < dimension; i++)
+						y[i] *= (1 - rho[i * intervals + epoch - 1]);
+				}
+			}
+
+			for (int epoch = last + 1; epoch < intervals; epoch++) {
+				epochStartValues[epoch] = epochStartValues[last];
+				epochFirstStep[epoch] = stepCount;
+				epochStepCount[epoch] = 0;
+			}
+
+		} catch (Exception e) {
+
+			throw new RuntimeException("couldn't calculate p", e);
+
+		} finally {
+			integrator.clearStepHandlers();
+			for (StepHandler handler : otherHandlers) integrator.addStepHandler(handler);
+		}
+	}
+
+	/**
+	 * @param t
+	 * @return a new array containing p0 at time t
+	 */
+	public double[] getP(double t) {
+		double[] result = new double[dimension];
+		getP(t, result);
+		return result;
+	}
+
+	/**
+	 * Write p0 at time t into result.
+	 * At a change time, the value after the rho-sampling jump is returned (as in p0ge_ODE.getP).
+	 * @param t
+	 * @param result
+	 */
+	public void getP(double t, double[] result) {
+
+		int epoch = Utils.index(t, times, intervals);
+
+		if (epoch > 0 && Math.abs(t - times[epoch - 1]) < globalPrecisionThreshold) epoch--;
+
+		getP(t, epoch, result);
+	}
+
+	/**
+	 * Write p0 at time t into result, using the solution of the given epoch.
+	 * At the lower end of the epoch, this is the value before the rho-sampling jump.
+	 * @param t
+	 * @param epoch
+	 * @param result
+	 */
+	public void getP(double t, int epoch, double[] result) {
+
+		if (t >= T || Math.abs(t - times[epoch]) < globalPrecisionThreshold || epochStepCount[epoch] == 0) {
+			System.arraycopy(epochStartValues[epoch], 0, result, 0, dimension);
+			return;
+		}
+
+		// steps are in decreasing time order, find the first one ending at or below t
+		int lo = epochFirstStep[epoch];
+		int hi = lo + epochStepCount[epoch] - 1;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (stepEndTimes[mid] > t) lo = mid + 1;
+			else hi = mid;
+		}
+
+		double[] z = stepNodes[lo];
+		double[] c = stepCoefficients[lo];
+
+		for (int i = 0; i < dimension; i++) {
+			int k = 6 * i;
+			result[i] = c[k] + (t - z[0]) * (c[k + 1] + (t - z[1]) * (c[k + 2] + (t - z[2]) * (c[k + 3] + (t - z[3]) * (c[k + 4] + (t - z[4]) * c[k + 5]))));
+		}
+	}
+
+	@Override
+	public void init(double t0, double[] y0, double t) {
+	}
+
+	@Override
+	public void handleStep(StepInterpolator interpolator, boolean isLast) throws MaxCountExceededException {
+
+		double t0 = interpolator.getPreviousTime();
+		double t1 = interpolator.getCurrentTime();
+		double tm = 0.5 * (t0 + t1);
+
+		if (stepCount == stepEndTimes.length) {
+			int newLength = 2 * stepCount;
+			stepEndTimes = Arrays.copyOf(stepEndTimes, newLength);
+			stepNodes = Arrays.copyOf(stepNodes, newLength);
+			stepCoefficients = Arrays.copyOf(stepCoefficients, newLength);
+		}
+
+		double[] z = new double[]{t0, t0, tm, tm, t1, t1};
+		double[] c = new double[6 * dimension];
+
+		interpolator.setInterpolatedTime(t0);
+		double[] state = interpolator.getInterpolatedState();
+		double[] derivatives = interpolator.getInterpolatedDerivatives();
+		for (int i = 0; i < dimension; i++) {
+			c[6 * i] = state[i];
+			c[6 * i + 1] = state[i];
+			derivativesStart[i] = derivatives[i];
+		}
+
+		interpolator.setInterpolatedTime(tm);
+		state = interpolator.getInterpolatedState();
+		derivatives = interpolator.getInterpolatedDerivatives();
+		for (int i = 0; i < dimension; i++) {
+			stateMid[i] = state[i];
+			derivativesMid[i] = derivatives[i];
+		}
+
+		interpolator.setInterpolatedTime(t1);
+		state = interpolator.getInterpolatedState();
+		derivatives = interpolator.getInterpolatedDerivatives();
+
+		double[] dy = new double[3];
+
+		for (int i = 0; i < dimension; i++) {
+
+			int k = 6 * i;
+			c[k + 2] = stateMid[i];
+			c[k + 3] = stateMid[i];
+			c[k + 4] = state[i];
+			c[k + 5] = state[i];
+
+			// divided differences on the doubled nodes, first order differences on equal nodes are the derivatives
+			dy[0] = derivativesStart[i];
+			dy[1] = derivativesMid[i];
+			dy[2] = derivatives[i];
+			for (int j = 1; j < 6; j++) {
+				for (int l = 5; l >= j; l--) {
+					if (j == 1 && (l % 2) == 1)
+						c[k + l] = dy[l / 2];
+					else
+						c[k + l] = (c[k + l] - c[k + l - 1]) / (z[l] - z[l - j]);
+				}
+			}
+		}
+
+		stepEndTimes[stepCount] = t1;
+		stepNodes[stepCount] = z;
+		stepCoefficients[stepCount] = c;
+		stepCount++;
+	}
+}
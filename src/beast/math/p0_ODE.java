@@ -4,30 +4,41 @@ import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
 import org.apache.commons.math3.ode.FirstOrderIntegrator;
 import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
 
-import beast.core.util.Utils;
-
 
 /**
  * @author dkuh004
  *         Date: May 24, 2012
  *         Time: 6:42:00 PM
+ *
+ * An instance must only be used by one thread: setEpoch sets the rates read by computeDerivatives.
  */
 
 public class p0_ODE implements FirstOrderDifferentialEquations {
 
-	Double[] b;
-	Double[] b_ij;
-	Double[] d;
-	Double[] s;
+	double[] b;
+	double[] b_ij;
+	double[] d;
+	double[] s;
+
+	double[] M;
 
-	Double[] M;
+	// explicit flags instead of null checks on the rate arrays inside the derivatives
+	boolean birthAmongDemes;
+	boolean migration;
 
 	int dimension;
 	int intervals;
-	Double[] times;
-	int index;
+	double[] times;
 
-	public p0_ODE(Double[] b, Double[] b_ij, Double[] d, Double[] s, Double[] M, int dimension , int intervals, Double[] times) {
+	// rate interval used by computeDerivatives, and the rates of that interval stored contiguously
+	int epoch;
+	double[] bEpoch;
+	double[] dEpoch;
+	double[] sEpoch;
+	double[] b_ijEpoch;
+	double[] MEpoch;
+
+	public p0_ODE(double[] b, double[] b_ij, double[] d, double[] s, double[] M, int dimension , int intervals, double[] times) {
 
 		this.b = b;
 		this.b_ij = b_ij;
@@ -39,10 +50,18 @@ public class p0_ODE implements FirstOrderDifferentialEquations {
 
 		this.times = times;
 
+		this.birthAmongDemes = b_ij!=null;
+		this.migration = M!=null;
+
+		bEpoch = new double[dimension];
+		dEpoch = new double[dimension];
+		sEpoch = new double[dimension];
+		b_ijEpoch = new double[dimension*(dimension-1)];
+		MEpoch = new double[dimension*(dimension-1)];
 	}
 
-	// updateRates is not used here because a new p0_ODE is created each time PiecewiseBirthDeathMigrationDistribution.updateRates() is called (called through setUpIntegrators())
-	public void updateRates(Double[] b, Double[] b_ij, Double[] d, Double[] s, Double[] M, Double[] times){
+	// called through PiecewiseBirthDeathMigrationDistribution.setupIntegrators() after each update of the rates
+	public void updateRates(double[] b, double[] b_ij, double[] d, double[] s, double[] M, double[] times){
 
 		this.b = b;
 		this.b_ij = b_ij;
@@ -51,38 +70,58 @@ public class p0_ODE implements FirstOrderDifferentialEquations {
 		this.M = M;
 		this.times = times;
 
+		this.birthAmongDemes = b_ij!=null;
+		this.migration = M!=null;
 	}
 
 	public int getDimension() {
 		return this.dimension;
 	}
 
+	/**
+	 * Set the rate interval used by computeDerivatives.
+	 * Each integration must stay within one interval, the caller splits the integrations at the change times.
+	 * @param epoch index of the rate interval
+	 */
+	public void setEpoch(int epoch) {
+
+		this.epoch = epoch;
+
+		for (int i=0; i<dimension; i++) {
+			bEpoch[i] = b[i*intervals + epoch];
+			dEpoch[i] = d[i*intervals + epoch];
+			sEpoch[i] = s[i*intervals + epoch];
+		}
+
+		for (int l=0; l<dimension*(dimension-1); l++) {
+			if (birthAmongDemes) b_ijEpoch[l] = b_ij[l*intervals + epoch];
+			if (migration) MEpoch[l] = M[l*intervals + epoch];
+		}
+	}
+
 	public void computeDerivatives(double t, double[] y, double[] yDot) {
 
-		index = Utils.index(t, times, intervals); //finds the indexTimeInterval of the time interval t lies in
-		int k, l;
+		int l;
 
 		for (int i = 0; i<dimension; i++){
 
-			k = i*intervals + index;
-
-			yDot[i] = + (b[k]+d[k]+s[k])*y[i] - d[k] - b[k]*y[i]*y[i] ;
+			yDot[i] = + (bEpoch[i]+dEpoch[i]+sEpoch[i])*y[i] - dEpoch[i] - bEpoch[i]*y[i]*y[i] ;
 
 			for (int j=0; j<dimension; j++){
 
-				l = (i*(dimension-1)+(j<i?j:j-1))*intervals + index;
-
 				if (i!=j){
 
-					if (b_ij!=null){     // infection among demes
+					l = i*(dimension-1)+(j<i?j:j-1);
+
+					if (birthAmongDemes){     // infection among demes
 
-						yDot[i] += b_ij[l]*y[i]; 
-						yDot[i] -= b_ij[l]*y[i]*y[j];
+						yDot[i] += b_ijEpoch[l]*y[i]; 
+						yDot[i] -= b_ijEpoch[l]*y[i]*y[j];
 					}
 
-					if (M[0]!=null) {// migration:
-						yDot[i] += M[l] * y[i];
-						yDot[i] -= M[l] * y[j];
+					if (migration) {// migration:
+						yDot[i] += MEpoch[l] * y[i];
+						yDot[i] -= MEpoch[l] * y[j];
 					}
 				}
 			}
@@ -98,13 +137,14 @@ public class p0_ODE implements FirstOrderDifferentialEquations {
 	public static void main(String[] args) throws Exception{
 		
 		// 2d test
-		Double[] b = {1.03,1.06};
-		Double[] d = {1.,1.};
-		Double[] s = {0.02,0.04};
-		Double[] M = new Double[]{3.,4.};
+		double[] b = {1.03,1.06};
+		double[] d = {1.,1.};
+		double[] s = {0.02,0.04};
+		double[] M = new double[]{3.,4.};
 
 		FirstOrderIntegrator integrator = new DormandPrince853Integrator(1.0e-8, 100.0, 1.0e-20, 1.0e-9);//new ClassicalRungeKuttaIntegrator(.01); //
-		FirstOrderDifferentialEquations ode = new p0_ODE(b,null,d,s,M, 2, 1, new Double[]{0.});
+		p0_ODE ode = new p0_ODE(b,null,d,s,M, 2, 1, new double[]{0.});
+		ode.setEpoch(0);
 		double[] y0 = new double[]{1.,1.};
 		double[] y = new double[2];
 
@@ -127,10 +167,10 @@ public class p0_ODE implements FirstOrderDifferentialEquations {
 		//
 		//
 		//        // 3d test
-		//        Double[] birth = {1.03,1.06, 1.5};
-		//        Double[] death = {1.,1., 1.2};
-		//        Double[] sampling = {0.02,0.04, 0.1};
-		//        Double[] migration = {3., 1.,4.,1.,2., 2.};
+		//        double[] birth = {1.03,1.06, 1.5};
+		//        double[] death = {1.,1., 1.2};
+		//        double[] sampling = {0.02,0.04, 0.1};
+		//        double[] migration = {3., 1.,4.,1.,2., 2.};
 		//
 		//        FirstOrderIntegrator integrator = new DormandPrince853Integrator(1.0e-8, 100.0, 1.0e-10, 1.0e-10);//new ClassicalRungeKuttaIntegrator(.01); //
 		//        FirstOrderDifferentialEquations ode = new p0_ODE(birth,death,sampling,migration, 3);
@@ -0,0 +1,151 @@
+package beast.math;
+
+import beast.core.util.Utils;
+
+
+/**
+ * Closed-form solution of the p0 and ge equations within a rate interval, for types that evolve independently
+ * (a single type, or no migration and no birth among types).
+ * Each type then follows the equations of the birth-death skyline model (Stadler et al. 2013).
+ * With rates lambda, mu, psi and tau the time elapsed towards the origin:
+ *
+ * dp/dtau = lambda p^2 - (lambda+mu+psi) p + mu = lambda (p - r-)(p - r+)
+ * dg/dtau = (2 lambda p - (lambda+mu+psi)) g
+ *
+ * With A = sqrt((lambda-mu-psi)^2 + 4 lambda psi), u0 = p(0) - r- and D = 1 - lambda u0 (1 - e^{-A tau})/A:
+ * p(tau) = r- + u0 e^{-A tau}/D and g(tau) = g(0) e^{-A tau}/D^2.
+ * This form stays finite for lambda = 0 and A = 0, and g is computed in log space so that it does not underflow.
+ */
+public class p0ge_Analytical {
+
+	int dimension;
+	int intervals;
+	double T;
+	double[] times;
+
+	double[] b;
+	double[] d;
+	double[] s;
+
+	// value of p0 at the start (upper end) of each epoch, after the rho-sampling jump
+	double[][] epochStartValues;
+
+	final static double globalPrecisionThreshold = p0ge_ODE.globalPrecisionThreshold;
+
+	final static double LOG2 = Math.log(2);
+
+
+	public p0ge_Analytical(int dimension, int intervals) {
+
+		this.dimension = dimension;
+		this.intervals = intervals;
+
+		epochStartValues = new double[intervals][dimension];
+	}
+
+	// called through PiecewiseBirthDeathMigrationDistribution.setupIntegrators() after each update of the rates
+	public void updateRates(double[] b, double[] d, double[] s, double T, double[] times) {
+
+		this.b = b;
+		this.d = d;
+		this.s = s;
+		this.T = T;
+		this.times = times;
+	}
+
+	/**
+	 * Compute p0 at the start of each epoch, from T to 0, as p0_DenseOutput.integrate does
+	 * @param rhoSampling if true, p0 is multiplied by (1-rho) at each change time
+	 * @param rho
+	 */
+	public void computeEpochStartValues(Boolean rhoSampling, double[] rho) {
+
+		double[] y = new double[dimension];
+
+		int last = Utils.index(T, times, intervals);
+
+		for (int i = 0; i < dimension; i++)
+			y[i] = rhoSampling ? (1 - rho[i * intervals + last]) : 1.;
+
+		for (int epoch = last; epoch >= 0; epoch--) {
+
+			double to = (epoch == last) ? T : times[epoch];
+			double from = (epoch > 0) ? times[epoch - 1] : 0.;
+
+			System.arraycopy(y, 0, epochStartValues[epoch], 0, dimension);
+
+			if (Math.abs(from - to) > globalPrecisionThreshold)
+				advance(y, null, epoch, to - from);
+
+			if (rhoSampling && epoch > 0) {
+				for (int i = 0; i < dimension; i++)
+					y[i] *= (1 - rho[i * intervals + epoch - 1]);
+			}
+		}
+
+		for (int epoch = last + 1; epoch < intervals; epoch++)
+			System.arraycopy(epochStartValues[last], 0, epochStartValues[epoch], 0, dimension);
+	}
+
+	/**
+	 * @param t
+	 * @return a new array containing p0 at time t, see p0_DenseOutput.getP
+	 */
+	public double[] getP(double t) {
+
+		int epoch = Utils.indexIntervalBelow(t, times, intervals, globalPrecisionThreshold);
+		int last = Utils.index(T, times, intervals);
+
+		double[] result = epochStartValues[epoch].clone();
+
+		double to = (epoch == last) ? T : times[epoch];
+		if (t < to - globalPrecisionThreshold)
+			advance(result, null, epoch, to - t);
+
+		return result;
+	}
+
+	/**
+	 * Advance p0, and ge if not null, of all types by tau towards the origin, in place.
+	 * The interval must not contain a change time.
+	 * @param p
+	 * @param g
+	 * @param epoch
+	 * @param tau
+	 */
+	public void advance(double[] p, SmallNumber[] g, int epoch, double tau) {
+
+		for (int i = 0; i < dimension; i++) {
+
+			int k = i * intervals + epoch;
+			double lambda = b[k];
+			double mu = d[k];
+			double psi = s[k];
+
+			double sum = lambda + mu + psi;
+			if (sum == 0.) continue; // p0 and ge are constant
+
+			double A = Math.sqrt((lambda - mu - psi) * (lambda - mu - psi) + 4 * lambda * psi);
+			double rMinus = 2 * mu / (sum + A);
+
+			double u0 = p[i] - rMinus;
+			double phi = (A > 0.) ? -Math.expm1(-A * tau) / A : tau;
+			double D = 1 - lambda * u0 * phi;
+
+			p[i] = rMinus + u0 * Math.exp(-A * tau) / D;
+
+			if (g != null && g[i].getMantissa() != 0)
+				g[i] = SmallNumber.multiply(g[i], exp(-A * tau - 2 * Math.log(D)));
+		}
+	}
+
+	/**
+	 * @param x
+	 * @return e^x as a SmallNumber, without underflow
+	 */
+	static SmallNumber exp(double x) {
+
+		int exponent = (int) Math.floor(x / LOG2);
+		return new SmallNumber(Math.exp(x - exponent * LOG2), exponent);
+	}
+}
@@ -16,36 +16,55 @@ import java.util.Arrays;
  * User: Denise
  * Date: Jul 11, 2013
  * Time: 5:56:21 PM
+ *
+ * An instance must only be used by one thread: setEpoch and setLineages set the system integrated by computeDerivatives.
+ * The rate arrays are only read, so that each thread of the traversal can use its own instance pointed at the same rates.
  */
 
 
-public class p0ge_ODE implements FirstOrderDifferentialEquations {
+public class p0ge_ODE implements FirstOrderDifferentialEquations, BlockDiagonalEquations {
 
+	// p0 equations of this instance, only created for getP
 	p0_ODE P;
 	public FirstOrderIntegrator p_integrator;
 
-	Double[] b;
-	Double[] b_ij;
-	Double[] d;
-	Double[] s;
+	// if set, p0 is read from this shared solution and only the ge equations are integrated
+	p0_DenseOutput pDenseOutput;
+	double[] p0;
+
+	// number of lineages whose ge equations are integrated together (only with the shared p0 solution)
+	int lineages = 1;
+
+	double[] b;
+	double[] b_ij;
+	double[] d;
+	double[] s;
 
 	Boolean augmented;
-	Boolean birthAmongDemes;
+	boolean birthAmongDemes;
+	boolean migration;
 
-	Double[] M;
+	double[] M;
 	double T;
 
 	int dimension; /* ODE numberOfDemes = stateNumber */
 	int intervals;
-	Double[] times;
-	int index;
+	double[] times;
+
+	// rate interval used by computeDerivatives, and the rates of that interval stored contiguously
+	int epoch;
+	double[] bEpoch;
+	double[] dEpoch;
+	double[] sEpoch;
+	double[] b_ijEpoch;
+	double[] MEpoch;
 
 	int maxEvals;
 	public int maxEvalsUsed;
-	public static double globalPrecisionThreshold;
+	public final static double globalPrecisionThreshold = 1e-10;
 
 
-	public p0ge_ODE(Double[] b, Double[] b_ij, Double[] d, Double[] s, Double[] M, int dimension, int intervals, double T, Double[] times, p0_ODE P, int maxEvals, Boolean augmented){
+	public p0ge_ODE(double[] b, double[] b_ij, double[] d, double[] s, double[] M, int dimension, int intervals, double T, double[] times, int maxEvals, Boolean augmented){
 
 
 		this.b = b;
@@ -60,87 +79,184 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 
 		this.T = T;
 		this.times= times;
-		this.P = P;
 
 		this.augmented = augmented;
 		this.birthAmongDemes = b_ij!=null;
+		this.migration = M!=null;
+
+		bEpoch = new double[dimension];
+		dEpoch = new double[dimension];
+		sEpoch = new double[dimension];
+		b_ijEpoch = new double[dimension*(dimension-1)];
+		MEpoch = new double[dimension*(dimension-1)];
+	}
+
+	/**
+	 * Set the rate interval used by computeDerivatives.
+	 * Each integration must stay within one interval, the caller splits the integrations at the change times.
+	 * @param epoch index of the rate interval
+	 */
+	public void setEpoch(int epoch) {
+
+		this.epoch = epoch;
+
+		for (int i=0; i<dimension; i++) {
+			bEpoch[i] = b[i*intervals + epoch];
+			dEpoch[i] = d[i*intervals + epoch];
+			sEpoch[i] = s[i*intervals + epoch];
+		}
+
+		for (int l=0; l<dimension*(dimension-1); l++) {
+			if (birthAmongDemes) b_ijEpoch[l] = b_ij[l*intervals + epoch];
+			if (migration) MEpoch[l] = M[l*intervals + epoch];
+		}
+	}
+
+	/**
+	 * Read p0 from a solution shared by all branches, the ODE system then only contains the n ge equations.
+	 * @param pDenseOutput the p0 solution, or null to integrate p0 along with ge again
+	 */
+	public void setP0DenseOutput(p0_DenseOutput pDenseOutput) {
+		this.pDenseOutput = pDenseOutput;
+		if (p0 == null) p0 = new double[dimension];
+	}
+
+	/**
+	 * Point the ODE at new rate arrays, so that the same instance can be used for the next likelihood evaluation
+	 */
+	public void updateRates(double[] b, double[] b_ij, double[] d, double[] s, double[] M, double T, double[] times){
+
+		this.b = b;
+		this.b_ij = b_ij;
+		this.d = d;
+		this.s = s;
+		this.M = M;
+		this.birthAmongDemes = b_ij!=null;
+		this.migration = M!=null;
+
+		this.T = T;
+		this.times = times;
 
+		if (P != null) P.updateRates(b, b_ij, d, s, M, times);
+	}
+
+	public p0_DenseOutput getP0DenseOutput() {
+		return pDenseOutput;
 	}
 
 	public int getDimension() {
-		return 2*this.dimension;
+		return (pDenseOutput == null ? 2 : lineages) * this.dimension;
+	}
+
+	/**
+	 * The ge equations of different lineages are independent
+	 */
+	@Override
+	public int getBlockDimension() {
+		return (pDenseOutput == null ? 2 : 1) * this.dimension;
+	}
+
+	/**
+	 * Integrate the ge equations of several lineages as one system, lineage k is stored at k*dimension .. (k+1)*dimension-1.
+	 * Only possible when p0 is read from the shared solution.
+	 * @param lineages
+	 */
+	public void setLineages(int lineages) {
+		if (pDenseOutput == null && lineages != 1)
+			throw new RuntimeException("Several lineages can only be integrated together with the shared p0 solution");
+		this.lineages = lineages;
 	}
 
 	public void computeDerivatives(double t, double[] g, double[] gDot) {
 
+		if (pDenseOutput != null) {
+
+			// p0 is read once for all lineages
+			pDenseOutput.getP(t, epoch, p0);
 
-		index = Utils.index(t, times, intervals);
+			for (int k=0; k<lineages; k++)
+				computeGeDerivatives(p0, g, gDot, k*dimension);
+
+			return;
+		}
 
-		int k, l;
+		int l;
 
 		for (int i=0; i<dimension; i++){
 
 			/*  p0 equations (0 .. dim-1) */
 
-			k = i*intervals + index;
-
-			gDot[i] = + (b[k]+d[k]+s[k]
-					- b[k] * g[i]) * g[i]
-					- d[k] ;
+			gDot[i] = + (bEpoch[i]+dEpoch[i]+sEpoch[i]
+					- bEpoch[i] * g[i]) * g[i]
+					- dEpoch[i] ;
 
 			for (int j=0; j<dimension; j++){
 
-				l = (i*(dimension-1)+(j<i?j:j-1))*intervals + index;
-
 				if (i!=j){
+
+					l = i*(dimension-1)+(j<i?j:j-1);
+
 					if (birthAmongDemes){     // infection among demes
 
-						gDot[i] += b_ij[l]*g[i]; // birthAmongDemes_ij[intervals*i*(numberOfDemes-1)+(j<i?j:j-1)+indexTimeInterval]*g[i];
+						gDot[i] += b_ijEpoch[l]*g[i];
 
-						gDot[i] -= b_ij[l]*g[i]*g[j]; // birthAmongDemes_ij[intervals*i*(numberOfDemes-1)+(j<i?j:j-1)+indexTimeInterval]*g[i]*g[j];
+						gDot[i] -= b_ijEpoch[l]*g[i]*g[j];
 
 					}
 
-					if (M[0]!=null) {// migration:
-						gDot[i] += M[l] * g[i];
-						gDot[i] -= M[l] * g[j];
+					if (migration) {// migration:
+						gDot[i] += MEpoch[l] * g[i];
+						gDot[i] -= MEpoch[l] * g[j];
 					}
 				}
 			}
+		}
 
-			/*  ge equations: (dim .. 2*dim-1) */
+		computeGeDerivatives(g, g, gDot, dimension);
 
+		//        gDot[2] = -(-(birth[0]+birthAmongDemes_ij[0]+death[0]+sampling[0])*g[2] + 2*birth[0]*g[0]*g[2] + birthAmongDemes_ij[0]*g[0]*g[3] + birthAmongDemes_ij[0]*g[1]*g[2]);
+		//        gDot[3] = -(-(birth[1]+birthAmongDemes_ij[1]+death[1]+sampling[1])*g[3] + 2*birth[1]*g[1]*g[3] + birthAmongDemes_ij[1]*g[1]*g[2] + birthAmongDemes_ij[1]*g[0]*g[3]);
 
-			gDot[dimension+i] = + (b[k]+d[k]+s[k]
-					- 2*b[k]*g[i])*g[dimension+i];
+	}
 
+	/**
+	 * ge equations, for the ge values stored in g from offset on
+	 * @param p p0 values
+	 * @param g
+	 * @param gDot
+	 * @param offset
+	 */
+	void computeGeDerivatives(double[] p, double[] g, double[] gDot, int offset) {
 
-			for (int j=0; j<dimension; j++){
+		int l;
+
+		for (int i=0; i<dimension; i++){
+
+			gDot[offset+i] = + (bEpoch[i]+dEpoch[i]+sEpoch[i]
+					- 2*bEpoch[i]*p[i])*g[offset+i];
 
-				l = (i*(dimension-1)+(j<i?j:j-1))*intervals + index;
+
+			for (int j=0; j<dimension; j++){
 
 				if (i!=j){
 
-					if (b_ij!=null){     // infection among demes
+					l = i*(dimension-1)+(j<i?j:j-1);
 
-						gDot[dimension+i] += b_ij[l]*g[dimension+i];
+					if (birthAmongDemes){     // infection among demes
+
+						gDot[offset+i] += b_ijEpoch[l]*g[offset+i];
 						if (!augmented) {
-							gDot[dimension+i] -= b_ij[l]* ( g[i]*g[dimension+j] + g[j]*g[dimension+i]);
+							gDot[offset+i] -= b_ijEpoch[l]* ( p[i]*g[offset+j] + p[j]*g[offset+i]);
 						}
 					}
 
-					if (M[0]!=null) {// migration:
-						gDot[dimension + i] += M[l] * g[dimension + i];
-						if (!augmented) gDot[dimension + i] -= M[l] * g[dimension + j];
+					if (migration) {// migration:
+						gDot[offset + i] += MEpoch[l] * g[offset + i];
+						if (!augmented) gDot[offset + i] -= MEpoch[l] * g[offset + j];
 					}
 				}
 			}
-
 		}
-
-		//        gDot[2] = -(-(birth[0]+birthAmongDemes_ij[0]+death[0]+sampling[0])*g[2] + 2*birth[0]*g[0]*g[2] + birthAmongDemes_ij[0]*g[0]*g[3] + birthAmongDemes_ij[0]*g[1]*g[2]);
-		//        gDot[3] = -(-(birth[1]+birthAmongDemes_ij[1]+death[1]+sampling[1])*g[3] + 2*birth[1]*g[1]*g[3] + birthAmongDemes_ij[1]*g[1]*g[2] + birthAmongDemes_ij[1]*g[0]*g[3]);
-
 	}
 
 	/**
@@ -150,7 +266,7 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 	 * @param rho
 	 * @return
 	 */
-	public double[] getP(double t, double[]P0, double t0, Boolean rhoSampling, Double[] rho){
+	public double[] getP(double t, double[]P0, double t0, Boolean rhoSampling, double[] rho){
 
 
 		if (Math.abs(T-t)<globalPrecisionThreshold || Math.abs(t0-t)<globalPrecisionThreshold ||   T < t)
@@ -158,6 +274,8 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 
 		double[] result = new double[P0.length];
 
+		if (P == null) P = new p0_ODE(b, b_ij, d, s, M, dimension, intervals, times);
+
 		try {
 
 			System.arraycopy(P0, 0, result, 0, P0.length);
@@ -183,6 +301,7 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 
 				// TODO: putting the if(rhosampling) in there also means the 1-rho may never be actually used so a workaround is potentially needed
 				if (Math.abs(from-to)>globalPrecisionThreshold){
+					P.setEpoch(Utils.indexIntervalBelow(to, times, intervals, globalPrecisionThreshold));
 					p_integrator.integrate(P, to, result, from, result); // solve diffEquationOnP , store solution in y
 
 					if (rhoSampling){
@@ -203,6 +322,7 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 				index--;
 			}
 
+			P.setEpoch(Utils.indexIntervalBelow(to, times, intervals, globalPrecisionThreshold));
 			p_integrator.integrate(P, to, result, t, result); // solve diffEquationOnP, store solution in y
 
 			// TO DO
@@ -229,7 +349,7 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 	}
 
 
-	public double[] getP(double t, Boolean rhoSampling, Double[] rho){
+	public double[] getP(double t, Boolean rhoSampling, double[] rho){
 
 		double[] y = new double[dimension];
 
@@ -260,10 +380,10 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 	 */
 	public static void testCorrelations(){
 
-		Double[] b;
-		Double[] d = {1.,1.};
-		Double[] s;
-		Double[] M;// = {3.,3.};
+		double[] b;
+		double[] d = {1.,1.};
+		double[] s;
+		double[] M;// = {3.,3.};
 
 		Double psi;
 
@@ -273,15 +393,15 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 
 		for (double i =1.1; i<2; i+=0.125){
 
-			b = new Double[]{i, i};
+			b = new double[]{i, i};
 
 			//            psi = 0.5 * ((i - death[0]) - Math.sqrt((death[0] - i) * (death[0] - i) - .04));  // assume birth*sampling*m=constant
 
 
-			M = new Double[]{b[0]-d[0]-c2/b[0], b[0]-d[0]-c2/b[0]};     // assume birth-death-sampling=migration
+			M = new double[]{b[0]-d[0]-c2/b[0], b[0]-d[0]-c2/b[0]};     // assume birth-death-sampling=migration
 
 			psi = c2/c1 * M[0]; // assume birth*m = c1 and birth*sampling = c2
-			s = new Double[] {psi,psi};
+			s = new double[] {psi,psi};
 
 
 			FirstOrderIntegrator integrator1 = new ClassicalRungeKuttaIntegrator(.01);
@@ -297,8 +417,10 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 			double T = 1;
 			Boolean augmented = true;
 
-			p0_ODE p_ode = new p0_ODE(b,null, d,s,M, 2, 1, new Double[]{0.});
-			p0ge_ODE pg_ode = new p0ge_ODE(b,null, d,s,M, 2, 1, T, new Double[]{0.}, p_ode, Integer.MAX_VALUE,augmented);
+			p0_ODE p_ode = new p0_ODE(b,null, d,s,M, 2, 1, new double[]{0.});
+			p0ge_ODE pg_ode = new p0ge_ODE(b,null, d,s,M, 2, 1, T, new double[]{0.}, Integer.MAX_VALUE,augmented);
+			p_ode.setEpoch(0);
+			pg_ode.setEpoch(0);
 
 			System.out.println("birth[0] = "+b[0]+ ", death[0] = " + Math.round(d[0]*100.)/100.+ "\t\t");
 
@@ -365,11 +487,11 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 
 		testCorrelations();
 
-		Double[] birth = {2.,2.};
-		Double[] b;
-		Double[] d = {.5,.5};
-		Double[] s = {.5,.5};
-		Double[] M = {0.,0.};
+		double[] birth = {2.,2.};
+		double[] b;
+		double[] d = {.5,.5};
+		double[] s = {.5,.5};
+		double[] M = {0.,0.};
 
 		System.out.println("birth\tp\tg");
 
@@ -377,15 +499,17 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 
 		int i = 1;
 
-		b = new Double[]{i*birth[0], i*birth[1]};
+		b = new double[]{i*birth[0], i*birth[1]};
 
 		FirstOrderIntegrator integrator = new DormandPrince853Integrator(1.0e-4, 1., 1.0e-6, 1.0e-6);//new ClassicalRungeKuttaIntegrator(.01); //
 
 		double T = 10.;
 		Boolean augmented = false;
 
-		p0_ODE p_ode = new p0_ODE(b,new Double[]{1.,1.}, d,s,M, 2, 1, new Double[]{0.});
-		p0ge_ODE pg_ode = new p0ge_ODE(b,new Double[]{1.,1.}, d,s,M, 2, 1, T, new Double[]{0.}, p_ode, Integer.MAX_VALUE,augmented);
+		p0_ODE p_ode = new p0_ODE(b,new double[]{1.,1.}, d,s,M, 2, 1, new double[]{0.});
+		p0ge_ODE pg_ode = new p0ge_ODE(b,new double[]{1.,1.}, d,s,M, 2, 1, T, new double[]{0.}, Integer.MAX_VALUE,augmented);
+		p_ode.setEpoch(0);
+		pg_ode.setEpoch(0);
 
 		pg_ode.p_integrator = integrator;
 		double[] p0 = new double[]{1.,1.};
@@ -397,11 +521,11 @@ public class p0ge_ODE implements FirstOrderDifferentialEquations {
 		integrator.integrate(p_ode, T, p0, 0., p);
 
 		double[] res2 = new double[] {4};
-		double[] res  = pg_ode.getP(8, false, new Double[]{0.});
+		double[] res  = pg_ode.getP(8, false, new double[]{0.});
 		System.out.println(b[0] + "\t" + res[0]+"\t"+res[1]);
-		res2 = pg_ode.getP(5, res, 8, false, new Double[]{0.});
+		res2 = pg_ode.getP(5, res, 8, false, new double[]{0.});
 		System.out.println(b[0] + "\t" + res[0]+"\t"+res[1]);
-		res2 = pg_ode.getP(0, res, 5, false, new Double[]{0.});
+		res2 = pg_ode.getP(0, res, 5, false, new double[]{0.});
 		System.out.println(b[0] + "\t" + res[0]+"\t"+res[1]);
 
 		//             System.out.print("birth[0] = "+birth[0]+ ", death[0] = " + Math.round(death[0]*100.)/100.+ "\t\t");
@@ -1,17 +1,28 @@
 package test.beast.evolution.speciation;
 
+import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
 import beast.evolution.tree.*;
+import beast.math.IntegrationStatistics;
+import beast.math.distributions.Uniform;
 import beast.util.TreeParser;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
 import beast.evolution.alignment.Taxon;
 import beast.evolution.alignment.TaxonSet;
+import beast.evolution.speciation.BirthDeathMigrationClusterModelUncoloured;
+import beast.evolution.speciation.BirthDeathMigrationClusterSetUncoloured;
 import beast.evolution.speciation.BirthDeathMigrationModel;
 import beast.evolution.speciation.BirthDeathMigrationModelUncoloured;
 import beast.evolution.speciation.PiecewiseBirthDeathMigrationDistribution;
@@ -1745,6 +1756,969 @@ public class BirthDeathMigrationLikelihoodTest extends TestCase {
 
 	}
 
+	/**
+	 * Test that the partials cached between evaluations give the same result as a full calculation
+	 * after a node height change, and that restore() brings back the previous state
+	 * Uncoloured tree, 2 types, rate change
+	 * Reference from a freshly initialised BDMM
+	 * @throws Exception
+	 */
+	@Test
+	public void testPartialsCaching() throws Exception {
+
+		String newick = "((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);";
+		Tree tree = new TreeParser(newick, false);
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		double logL = bdm.calculateLogP();
+
+		bdm.store();
+
+		Node node = tree.getRoot().getChild(1); // parent of tips 1 and 2
+		double height = node.getHeight();
+		node.setHeight(2.);
+
+		double logLCached = bdm.calculateLogP();
+
+		Tree treeFresh = new TreeParser(newick, false);
+		treeFresh.getRoot().getChild(1).setHeight(2.);
+
+		assertEquals(getCachingTestModel(treeFresh).calculateLogP(), logLCached, 1e-10);
+		assertTrue(Math.abs(logL - logLCached) > 1e-4);
+
+		bdm.restore();
+		node.setHeight(height);
+
+		assertEquals(logL, bdm.getCurrentLogP(), 1e-10);
+		assertEquals(logL, bdm.calculateLogP(), 1e-10);
+	}
+
+	/**
+	 * The change times and rates kept from a previous evaluation give the same likelihood as computing them again
+	 * @throws Exception
+	 */
+	@Test
+	public void testRatesUpdate() throws Exception {
+
+		String newick = "((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);";
+		Tree tree = new TreeParser(newick, false);
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		double logL = bdm.calculateLogP();
+
+		// a move of an internal node below the root does not change the rates
+		Node node = tree.getRoot().getChild(1);
+		double height = node.getHeight();
+
+		bdm.store();
+		node.setHeight(2.);
+		bdm.calculateLogP();
+
+		bdm.restore();
+		node.setHeight(height);
+		assertEquals(logL, bdm.calculateLogP(), 1e-10);
+
+		// a change of R0 does
+		bdm.store();
+		bdm.R0.get().setValue(0, 4.);
+		double logLChanged = bdm.calculateLogP();
+
+		BirthDeathMigrationModelUncoloured bdmFresh = getCachingTestModel(new TreeParser(newick, false));
+		bdmFresh.R0.get().setValue(0, 4.);
+		assertEquals(bdmFresh.calculateLogP(), logLChanged, 1e-10);
+
+		bdm.restore();
+		bdm.R0.get().setValue(0, 6.);
+		assertEquals(logL, bdm.calculateLogP(), 1e-10);
+	}
+
+	/**
+	 * Integrating only ge along the branches, with p0 read from the shared solution, gives the same likelihood
+	 * @throws Exception
+	 */
+	@Test
+	public void testSharedP0() throws Exception {
+
+		// tips sampled at 291 different times
+		BirthDeathMigrationModelUncoloured bdm = getBigTreeTestModel();
+		bdm.setInputValue("sharedP0", true);
+		bdm.initAndValidate();
+
+		assertEquals(-661.9588648301033, bdm.calculateLogP(), 1e-5);
+
+		// branches crossing a rate change
+		Tree tree = getLadderTestTree();
+		double logL = getCachingTestModel(tree).calculateLogP();
+
+		bdm = getCachingTestModel(tree);
+		bdm.setInputValue("sharedP0", true);
+		bdm.initAndValidate();
+
+		assertEquals(logL, bdm.calculateLogP(), 1e-5);
+	}
+
+	/**
+	 * Propagating ge with the precomputed propagators gives the same likelihood as integrating each branch, and
+	 * converges as the grid of the propagators is refined
+	 * @throws Exception
+	 */
+	@Test
+	public void testPropagators() throws Exception {
+
+		Tree tree = getLadderTestTree();
+
+		double logL = getCachingTestModel(tree).calculateLogP();
+
+		int[] steps = new int[]{5, 200, 1000};
+		double[] logLPropagated = new double[steps.length];
+
+		for (int i = 0; i < steps.length; i++) {
+
+			BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+			bdm.setInputValue("sharedP0", true);
+			bdm.setInputValue("propagatorSteps", steps[i]);
+			bdm.initAndValidate();
+
+			logLPropagated[i] = bdm.calculateLogP();
+			assertEquals(logL, logLPropagated[i], 1e-5);
+		}
+
+		// the propagation converges as the grid is refined
+		assertTrue(Math.abs(logLPropagated[1] - logLPropagated[2]) < Math.abs(logLPropagated[0] - logLPropagated[2]));
+	}
+
+	/**
+	 * Integrating all lineages alive at the same time as one system gives the same likelihood as the traversal branch by branch
+	 * @throws Exception
+	 */
+	@Test
+	public void testBatchedTraversal() throws Exception {
+
+		// balanced tree with 64 tips sampled at different times, so that the batches change size at many times
+		String[] subtrees = new String[64];
+		for (int i = 0; i < subtrees.length; i++)
+			subtrees[i] = (i + 1) + "[&type=" + (i % 2) + "]:" + (0.2 + 0.01 * i);
+		for (int size = subtrees.length / 2; size >= 1; size /= 2)
+			for (int i = 0; i < size; i++)
+				subtrees[i] = "(" + subtrees[2 * i] + "," + subtrees[2 * i + 1] + "):0.3";
+		Tree tree = new TreeParser(subtrees[0].substring(0, subtrees[0].length() - 4) + ";", false);
+
+		double logL = getCachingTestModel(tree).calculateLogP();
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		bdm.setInputValue("sharedP0", true);
+		bdm.setInputValue("batchedTraversal", true);
+		bdm.initAndValidate();
+
+		assertEquals(logL, bdm.calculateLogP(), 1e-5);
+	}
+
+	/**
+	 * All integrators give the same likelihood as the default one, within the tolerances
+	 * @throws Exception
+	 */
+	@Test
+	public void testIntegrators() throws Exception {
+
+		Tree tree = new TreeParser("((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);", false);
+
+		double logL = getCachingTestModel(tree).calculateLogP();
+
+		for (String integrator : new String[]{"DORMANDPRINCE853", "HIGHAMHALL54", "ROSENBROCK", "AUTO"}) {
+
+			BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+			bdm.setInputValue("integrator", integrator);
+			bdm.initAndValidate();
+
+			assertEquals(logL, bdm.calculateLogP(), 1e-5);
+		}
+	}
+
+	/**
+	 * With a migration rate much higher than the other rates, AUTO chooses the Rosenbrock integrator, which evaluates
+	 * the equations about 4 times less often than DORMANDPRINCE54. Both likelihoods differ by about 4e-5
+	 * @throws Exception
+	 */
+	@Test
+	public void testAutoIntegratorStiff() throws Exception {
+
+		Tree tree = new TreeParser("((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);", false);
+
+		double[] logL = new double[3];
+		double[] evaluations = new double[3];
+		String[] integrators = new String[]{"DORMANDPRINCE54", "ROSENBROCK", "AUTO"};
+
+		for (int i = 0; i < integrators.length; i++) {
+
+			BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+			bdm.setInputValue("migrationMatrix", "400000 400000 400000 400000");
+			bdm.setInputValue("R0", new RealParameter("1.5 1.5 1.5 1.5"));
+			bdm.setInputValue("becomeUninfectiousRate", new RealParameter("20 20 20 20"));
+			bdm.setInputValue("integrator", integrators[i]);
+			bdm.setInputValue("instrumentation", true);
+			bdm.initAndValidate();
+
+			logL[i] = bdm.calculateLogP();
+			evaluations[i] = getLoggedStatistics(bdm)[IntegrationStatistics.Counter.DERIVATIVE_EVALUATIONS.ordinal()];
+		}
+
+		assertEquals(logL[1], logL[2], 1e-10);
+		assertEquals(logL[0], logL[2], 1e-4);
+		assertTrue(evaluations[2] < evaluations[0] / 2);
+	}
+
+	/**
+	 * The Rosenbrock integrator gives the likelihood of the uncoloured tree with 291 tips of testLikelihoodCalculationMig
+	 * within 1e-4 of the reference (the difference is about 7e-5, the other integrators are within 1e-5)
+	 * @throws Exception
+	 */
+	@Test
+	public void testRosenbrockIntegrator() throws Exception {
+
+		BirthDeathMigrationModelUncoloured bdm = getBigTreeTestModel();
+		bdm.setInputValue("integrator", "ROSENBROCK");
+		bdm.initAndValidate();
+
+		assertEquals(-661.9588648301033, bdm.calculateLogP(), 1e-4);
+	}
+
+	/**
+	 * With a single type, rho sampling and several rate intervals, the closed-form solution gives the likelihood of the
+	 * numerical integration on the tree of testMultiRhoWithRateChanges (measured difference 3.2e-7)
+	 * @throws Exception
+	 */
+	@Test
+	public void testAnalyticalSolution() throws Exception {
+
+		Tree tree = new TreeParser("(((((t1[&type=0]:0.4595008531,t25[&type=0]:0.4595008531)[&type=0]:0.3373053072,t23[&type=0]:0.3567584538)[&type=0]:0.007310819036,t16[&type=0]:0.3489190732)[&type=0]:0.331009529,((t18[&type=0]:0.03315384045,t14[&type=0]:0.03315384045)[&type=0]:0.5063451374,(t10[&type=0]:0.4211543131,t15[&type=0]:0.4211543131)[&type=0]:0.1183446648)[&type=0]:0.5956275305)[&type=0]:0.1158090878,((t19[&type=0]:0.9429393194,((t6[&type=0]:0.363527235,t11[&type=0]:0.4417423167)[&type=0]:0.01881829549,((((t3[&type=0]:0.3071904376,(((t24[&type=0]:0.01065209364,t13[&type=0]:0.01065209364)[&type=0]:0.06076485145,t8[&type=0]:0.07141694509)[&type=0]:0.123620245,(t22[&type=0]:0.1616119808,t2[&type=0]:0.1616119808)[&type=0]:0.03342520927)[&type=0]:0.1121532475)[&type=0]:0.24520579,t9[&type=0]:0.5523962276)[&type=0]:0.3852615426,(((t20[&type=0]:0.2935970782,(t17[&type=0]:0.06569090089,t4[&type=0]:0.06569090089)[&type=0]:0.2279061773)[&type=0]:0.08350780408,(t21[&type=0]:0.05109047139,t5[&type=0]:0.05109047139)[&type=0]:0.3260144109)[&type=0]:0.2298344132,t7[&type=0]:0.6069392955)[&type=0]:0.3307184747)[&type=0]:0.01206284377,t26[&type=0]:0.9497206139)[&type=0]:0.05755333197)[&type=0]:0.03290891884)[&type=0]:0.07263755325,t12[&type=0]:1.112820418)[&type=0]:0.1381151782);",false);
+
+		for (boolean conditionOnSurvival : new boolean[]{false, true}) {
+
+			double[] logL = new double[2];
+			for (int i = 0; i < 2; i++) {
+				BirthDeathMigrationModelUncoloured bdssm = new BirthDeathMigrationModelUncoloured();
+				bdssm.setInputValue("typeLabel", "type");
+				bdssm.setInputValue("frequencies", "1");
+				bdssm.setInputValue("migrationMatrix", "0.");
+				bdssm.setInputValue("stateNumber", 1);
+
+				bdssm.setInputValue("tree", tree);
+				bdssm.setInputValue("conditionOnSurvival", conditionOnSurvival);
+
+				bdssm.setInputValue("R0", new RealParameter(new Double[]{3./4.5, 2./1.5, 4./1.5, 4./2.5}));
+				bdssm.setInputValue("becomeUninfectiousRate", new RealParameter("4.5 1.5 1.5 2.5"));
+				bdssm.setInputValue("samplingProportion", new RealParameter(new Double[]{2./4.5, .5/1.5, 1./1.5, 2./2.5}));
+				bdssm.setInputValue("rho", new RealParameter("0.05 0.01"));
+				bdssm.setInputValue("rhoSamplingTimes","0. 1.");
+				bdssm.setInputValue("intervalTimes", new RealParameter("0. 0.5 1. 1.1"));
+				bdssm.setInputValue("useAnalyticalSolution", i == 1);
+				bdssm.initAndValidate();
+
+				logL[i] = bdssm.calculateLogP();
+			}
+
+			assertEquals(logL[0], logL[1], 1e-6);
+		}
+	}
+
+	/**
+	 * With the factor tuned from the measured traversal times, every evaluation gives the sequential likelihood
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelizationTuner() throws Exception {
+
+		// balanced tree with 32 tips, so that the traversal can fork at many nodes
+		String[] subtrees = new String[32];
+		for (int i = 0; i < subtrees.length; i++)
+			subtrees[i] = (i + 1) + "[&type=" + (i % 2) + "]:0.5";
+		for (int size = subtrees.length / 2; size >= 1; size /= 2)
+			for (int i = 0; i < size; i++)
+				subtrees[i] = "(" + subtrees[2 * i] + "," + subtrees[2 * i + 1] + "):0.5";
+		Tree tree = new TreeParser(subtrees[0].substring(0, subtrees[0].length() - 4) + ";", false);
+
+		BirthDeathMigrationModelUncoloured bdmSequential = getCachingTestModel(tree);
+		bdmSequential.setInputValue("parallelize", false);
+		bdmSequential.initAndValidate();
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		bdm.setInputValue("parallelize", true);
+		bdm.setInputValue("autoTuneParallelization", true);
+		bdm.setInputValue("threads", 2);
+		bdm.setInputValue("instrumentation", true);
+		bdm.initAndValidate();
+
+		// the tuning starts with the finest candidate, 1/(8 threads)
+		assertEquals(1. / 16, getLoggedFactor(bdm), 0.);
+
+		// enough evaluations to try each candidate factor, and then to keep the chosen one
+		double factor = 0.;
+		for (int i = 0; i < 150; i++) {
+			double R0 = 4. + (i % 3);
+
+			bdmSequential.store();
+			bdmSequential.R0.get().setValue(0, R0);
+			bdm.store();
+			bdm.R0.get().setValue(0, R0);
+
+			assertEquals(bdmSequential.calculateLogP(), bdm.calculateLogP(), 1e-10);
+
+			if (i == 120) factor = getLoggedFactor(bdm);
+			else if (i > 120) assertEquals(factor, getLoggedFactor(bdm), 0.);
+		}
+
+		assertTrue(factor == Double.POSITIVE_INFINITY || factor < 0.5);
+	}
+
+	/**
+	 * @param bdm with the instrumentation and the tuning of the parallelization switched on
+	 * @return the parallelization factor logged by the distribution, in the column before the counters
+	 */
+	static double getLoggedFactor(BirthDeathMigrationModelUncoloured bdm) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bdm.log(0, new PrintStream(bytes));
+
+		String[] columns = bytes.toString().trim().split("\t");
+		return Double.parseDouble(columns[columns.length - IntegrationStatistics.Counter.values().length - 1]);
+	}
+
+	/**
+	 * The instrumentation does not change the likelihood, and counts the work done
+	 * @throws Exception
+	 */
+	@Test
+	public void testInstrumentation() throws Exception {
+
+		Tree tree = new TreeParser("((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);", false);
+
+		double logL = getCachingTestModel(tree).calculateLogP();
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		bdm.setInputValue("instrumentation", true);
+		bdm.initAndValidate();
+
+		assertEquals(logL, bdm.calculateLogP(), 1e-10);
+
+		double[] statistics = getLoggedStatistics(bdm);
+		assertTrue(statistics[IntegrationStatistics.Counter.DERIVATIVE_EVALUATIONS.ordinal()] > 0);
+		assertTrue(statistics[IntegrationStatistics.Counter.ACCEPTED_STEPS.ordinal()] > 0);
+		assertTrue(statistics[IntegrationStatistics.Counter.BRANCH_TIME.ordinal()] > 0);
+
+		// the counts are reset when logged
+		assertEquals(0., getLoggedStatistics(bdm)[IntegrationStatistics.Counter.ACCEPTED_STEPS.ordinal()], 0.);
+	}
+
+	/**
+	 * @param bdm with the instrumentation switched on
+	 * @return the counts and times logged by the distribution, in the order of the counters
+	 */
+	static double[] getLoggedStatistics(BirthDeathMigrationModelUncoloured bdm) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bdm.log(0, new PrintStream(bytes));
+
+		// the counters are the last columns
+		String[] columns = bytes.toString().trim().split("\t");
+		double[] statistics = new double[IntegrationStatistics.Counter.values().length];
+		for (int i = 0; i < statistics.length; i++)
+			statistics[i] = Double.parseDouble(columns[columns.length - statistics.length + i]);
+
+		return statistics;
+	}
+
+	/**
+	 * Reusing the branches of tips with the same type and sampling time gives the same likelihood, as the shared
+	 * segments are integrated between the same times as the branches they replace, with fewer evaluations of the
+	 * equations (about 18000 instead of 22000 on the ladder)
+	 * @throws Exception
+	 */
+	@Test
+	public void testTipBranchMemo() throws Exception {
+
+		// tips of the same type and sampling time share the segment below the change time
+		Tree tree = getLadderTestTree();
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		bdm.setInputValue("instrumentation", true);
+		bdm.initAndValidate();
+
+		double logL = bdm.calculateLogP();
+		double evaluations = getLoggedStatistics(bdm)[IntegrationStatistics.Counter.DERIVATIVE_EVALUATIONS.ordinal()];
+
+		bdm = getCachingTestModel(tree);
+		bdm.setInputValue("memoizeTipBranches", true);
+		bdm.setInputValue("instrumentation", true);
+		bdm.initAndValidate();
+
+		assertEquals(logL, bdm.calculateLogP(), 0.);
+		assertTrue(getLoggedStatistics(bdm)[IntegrationStatistics.Counter.DERIVATIVE_EVALUATIONS.ordinal()] < evaluations);
+	}
+
+	/**
+	 * The recursion overflows the default stack on a deep ladder tree, while the iterative traversal evaluates it
+	 * there and gives the same likelihood as the recursion on a larger stack
+	 * @throws Exception
+	 */
+	@Test
+	public void testIterativeTraversal() throws Exception {
+
+		// ladder-shaped tree of 5000 tips, the shape for which the recursion is deepest
+		StringBuilder newick = new StringBuilder("1[&type=0]:0.0005");
+		for (int i = 2; i <= 5000; i++) {
+			newick.insert(0, "(");
+			newick.append(",").append(i).append("[&type=").append(i % 2).append("]:").append(0.0005 * i).append("):0.0005");
+		}
+
+		// the tree is parsed and evaluated recursively in a thread with a stack large enough for both
+		Tree[] tree = new Tree[1];
+		double[] logL = new double[]{Double.NaN, Double.NaN};
+		Thread thread = new Thread(null, () -> {
+			tree[0] = new TreeParser(newick + ";", false);
+			BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree[0]);
+			bdm.setInputValue("parallelize", false);
+			bdm.initAndValidate();
+			logL[0] = bdm.calculateLogP();
+		}, "recursiveTraversal", 1 << 28);
+		thread.start();
+		thread.join();
+
+		// on a thread with the default stack size, the recursion overflows
+		boolean[] overflow = new boolean[1];
+		thread = new Thread(() -> {
+			BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree[0]);
+			bdm.setInputValue("parallelize", false);
+			bdm.initAndValidate();
+			try {
+				bdm.calculateLogP();
+			} catch (StackOverflowError e) {
+				overflow[0] = true;
+			}
+		});
+		thread.start();
+		thread.join();
+		assertTrue(overflow[0]);
+
+		// while the iterative traversal does not
+		thread = new Thread(() -> {
+			BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree[0]);
+			bdm.setInputValue("iterativeTraversal", true);
+			bdm.initAndValidate();
+			logL[1] = bdm.calculateLogP();
+		});
+		thread.start();
+		thread.join();
+
+		assertEquals(logL[0], logL[1], 1e-10);
+	}
+
+	/**
+	 * The parallel traversal gives exactly the sequential likelihood in every evaluation
+	 * @throws Exception
+	 */
+	@Test
+	public void testParallelTraversalIsReproducible() throws Exception {
+
+		// balanced tree with 32 tips, so that the traversal forks at many nodes
+		String[] subtrees = new String[32];
+		for (int i = 0; i < subtrees.length; i++)
+			subtrees[i] = (i + 1) + "[&type=" + (i % 2) + "]:0.5";
+		for (int size = subtrees.length / 2; size >= 1; size /= 2)
+			for (int i = 0; i < size; i++)
+				subtrees[i] = "(" + subtrees[2 * i] + "," + subtrees[2 * i + 1] + "):0.5";
+		Tree tree = new TreeParser(subtrees[0].substring(0, subtrees[0].length() - 4) + ";", false);
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		bdm.setInputValue("parallelize", false);
+		bdm.initAndValidate();
+
+		double logL = bdm.calculateLogP();
+
+		// the results of the threads are the same as the sequential ones, in every evaluation
+		for (int i = 0; i < 10; i++) {
+			bdm = getCachingTestModel(tree);
+			bdm.setInputValue("parallelize", true);
+			bdm.setInputValue("parallelizationFactor", 0.01);
+			bdm.initAndValidate();
+
+			assertEquals(logL, bdm.calculateLogP(), 0.);
+		}
+	}
+
+	/**
+	 * With cacheRootConditions, an origin move recomputes the whole tree and gives the uncached likelihood
+	 * @throws Exception
+	 */
+	@Test
+	public void testRootConditionsCache() throws Exception {
+
+		String treeCol = "(1[&state=1]:29.5, (2[&state=1]:29.0, (3[&state=0]:27.0)[&state=1]:2.0)[&state=1]:0.5)[&state=1]:0.0;";
+
+		double[] logL = new double[2];
+
+		for (int i = 0; i < 2; i++) {
+
+			MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+			mtTree.initByName(
+					"adjustTipHeights", false,
+					"value", treeCol,
+					"typeLabel", "state");
+
+			RealParameter origin = new RealParameter("36.");
+
+			BirthDeathMigrationModel bdmMT =  new BirthDeathMigrationModel();
+
+			bdmMT.setInputValue("tree", mtTree);
+			bdmMT.setInputValue("origin", origin);
+			bdmMT.setInputValue("originBranch", new MultiTypeRootBranch());
+
+			bdmMT.setInputValue("stateNumber", "2");
+			bdmMT.setInputValue("migrationMatrix", "0.3 0.4");
+			bdmMT.setInputValue("frequencies", "0.6 0.4");
+
+			bdmMT.setInputValue("R0", new RealParameter("1.5 1.4"));
+			bdmMT.setInputValue("becomeUninfectiousRate", new RealParameter("1.5 1.6"));
+			bdmMT.setInputValue("samplingProportion", new RealParameter("0.1 0.1") );
+
+			bdmMT.setInputValue("conditionOnSurvival", false);
+			bdmMT.setInputValue("cacheRootConditions", i == 1);
+			bdmMT.initAndValidate();
+
+			bdmMT.calculateLogP();
+
+			// the origin moves, the conditions at the root must be computed again
+			origin.setValue(40.);
+			logL[i] = bdmMT.calculateLogP();
+		}
+
+		assertEquals(logL[0], logL[1], 0.);
+	}
+
+	/**
+	 * With cacheRootConditions, a new root branch coloring reuses the conditions at the root and gives the uncached likelihood
+	 * @throws Exception
+	 */
+	@Test
+	public void testRootConditionsCacheRootBranchRetype() throws Exception {
+
+		String treeCol = "(1[&state=1]:29.5, (2[&state=1]:29.0, (3[&state=0]:27.0)[&state=1]:2.0)[&state=1]:0.5)[&state=1]:0.0;";
+
+		double[] logL = new double[2];
+
+		for (int i = 0; i < 2; i++) {
+
+			MultiTypeTreeFromNewick mtTree = new MultiTypeTreeFromNewick();
+			mtTree.initByName(
+					"adjustTipHeights", false,
+					"value", treeCol,
+					"typeLabel", "state");
+
+			MultiTypeRootBranch originBranch = new MultiTypeRootBranch();
+
+			BirthDeathMigrationModel bdmMT =  new BirthDeathMigrationModel();
+
+			bdmMT.setInputValue("tree", mtTree);
+			bdmMT.setInputValue("origin", new RealParameter("36."));
+			bdmMT.setInputValue("originBranch", originBranch);
+
+			bdmMT.setInputValue("stateNumber", "2");
+			bdmMT.setInputValue("migrationMatrix", "0.3 0.4");
+			bdmMT.setInputValue("frequencies", "0.6 0.4");
+
+			bdmMT.setInputValue("R0", new RealParameter("1.5 1.4"));
+			bdmMT.setInputValue("becomeUninfectiousRate", new RealParameter("1.5 1.6"));
+			bdmMT.setInputValue("samplingProportion", new RealParameter("0.1 0.1") );
+
+			bdmMT.setInputValue("conditionOnSurvival", false);
+			bdmMT.setInputValue("cacheRootConditions", i == 1);
+			bdmMT.initAndValidate();
+
+			bdmMT.calculateLogP();
+
+			// only the root branch is recoloured, as by RootBranchRetype, so that the conditions at the root can be reused
+			originBranch.addChange(0, 33.);
+			logL[i] = bdmMT.calculateLogP();
+		}
+
+		assertEquals(logL[0], logL[1], 0.);
+	}
+
+	/**
+	 * A change of the frequencies alone recombines the root partials without any integration
+	 * @throws Exception
+	 */
+	@Test
+	public void testFrequenciesOnlyUpdate() throws Exception {
+
+		Tree tree = new TreeParser("((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);", false);
+
+		RealParameter frequencies = new RealParameter("0.5 0.5");
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		bdm.setInputValue("frequencies", frequencies);
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.setInputValue("instrumentation", true);
+		bdm.initAndValidate();
+
+		bdm.calculateLogP();
+		getLoggedStatistics(bdm);
+
+		// the partials at the root are combined with the new frequencies, without a new integration
+		frequencies.setValue(0, 0.3);
+		frequencies.setValue(1, 0.7);
+
+		double logL = bdm.calculateLogP();
+		assertEquals(0., getLoggedStatistics(bdm)[IntegrationStatistics.Counter.DERIVATIVE_EVALUATIONS.ordinal()], 0.);
+
+		BirthDeathMigrationModelUncoloured bdmNew = getCachingTestModel(tree);
+		bdmNew.setInputValue("frequencies", "0.3 0.7");
+		bdmNew.setInputValue("conditionOnSurvival", true);
+		bdmNew.initAndValidate();
+
+		assertEquals(bdmNew.calculateLogP(), logL, 1e-10);
+	}
+
+	/**
+	 * The rate of the cluster is read from its quantile at each evaluation and scales the birth rates of the first type
+	 * (reference values from BDMM with R0 "8.4 2.8 5 2.5" and "6 2 5 2.5")
+	 * @throws Exception
+	 */
+	@Test
+	public void testClusterRate() throws Exception {
+
+		String newick = "((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);";
+
+		Uniform distribution = new Uniform();
+		distribution.initByName("lower", 0.5, "upper", 1.5);
+
+		RealParameter quantiles = new RealParameter("0.5 0.5");
+		BirthDeathMigrationClusterModelUncoloured cluster = getClusterTestModel(new TreeParser(newick, false), distribution, quantiles, "1 2", 2);
+
+		// the quantiles are drawn at random by the cluster
+		quantiles.setValue(1, 0.9);
+		assertEquals(1.4, cluster.getRateForCluster(1), 1e-10);
+		assertEquals(-16.03936737692216, cluster.calculateLogP(), 1e-10);
+
+		// a rate of 1 gives the likelihood without clusters
+		quantiles.setValue(1, 0.5);
+		assertEquals(1., cluster.getRateForCluster(1), 1e-10);
+		assertEquals(-15.041186800812135, cluster.calculateLogP(), 1e-10);
+	}
+
+	/**
+	 * The likelihood of a set of clusters evaluated in parallel is the sum of the likelihoods of the clusters,
+	 * whose birth rates are scaled by their rate
+	 * @throws Exception
+	 */
+	@Test
+	public void testClusterSet() throws Exception {
+
+		String newick = "((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);";
+
+		Uniform distribution = new Uniform();
+		distribution.initByName("lower", 0.5, "upper", 1.5);
+
+		RealParameter quantiles = new RealParameter("0.5 0.5");
+
+		List<BirthDeathMigrationClusterModelUncoloured> clusters = new ArrayList<>();
+
+		for (int i = 1; i <= 2; i++)
+			clusters.add(getClusterTestModel(new TreeParser(newick, false), distribution, quantiles, "1 2", i));
+
+		// the quantiles are drawn at random by the clusters, rates 1 and 1.4
+		quantiles.setValue(0, 0.5);
+		quantiles.setValue(1, 0.9);
+
+		BirthDeathMigrationClusterSetUncoloured clusterSet = new BirthDeathMigrationClusterSetUncoloured();
+		clusterSet.initByName("cluster", clusters, "threads", 2);
+
+		double logL = clusterSet.calculateLogP();
+
+		// the rate of the cluster scales the birth rates of the first type
+		BirthDeathMigrationModelUncoloured bdmScaled = getCachingTestModel(new TreeParser(newick, false));
+		bdmScaled.setInputValue("R0", new RealParameter("8.4 2.8 5 2.5"));
+		bdmScaled.initAndValidate();
+
+		assertEquals(getCachingTestModel(new TreeParser(newick, false)).calculateLogP() + bdmScaled.calculateLogP(), logL, 1e-10);
+	}
+
+	/**
+	 * A proposal on the quantile of one cluster only makes that cluster dirty, and only its birth rates are rescaled
+	 * @throws Exception
+	 */
+	@Test
+	public void testClusterQuantileUpdate() throws Exception {
+
+		String newick = "((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);";
+
+		Uniform distribution = new Uniform();
+		distribution.initByName("lower", 0.5, "upper", 1.5);
+
+		RealParameter quantiles = new RealParameter("0.5 0.5");
+
+		// large and sparse cluster numbers
+		BirthDeathMigrationClusterModelUncoloured cluster = getClusterTestModel(new TreeParser(newick, false), distribution, quantiles, "1000000 7", 7);
+		BirthDeathMigrationClusterModelUncoloured other = getClusterTestModel(new TreeParser(newick, false), distribution, quantiles, "1000000 7", 1000000);
+		assertEquals(1, cluster.getClusterIndex(7));
+
+		quantiles.setValue(0, 0.5);
+		quantiles.setValue(1, 0.5);
+		cluster.calculateLogP();
+		other.calculateLogP();
+
+		quantiles.setValue(1, 0.9);
+		cluster.checkDirtiness();
+		other.checkDirtiness();
+
+		assertTrue(cluster.isDirtyCalculation());
+		assertFalse(other.isDirtyCalculation());
+
+		double logL = cluster.calculateLogP();
+
+		BirthDeathMigrationModelUncoloured bdmScaled = getCachingTestModel(new TreeParser(newick, false));
+		bdmScaled.setInputValue("R0", new RealParameter("8.4 2.8 5 2.5"));
+		bdmScaled.initAndValidate();
+
+		assertEquals(bdmScaled.calculateLogP(), logL, 1e-10);
+	}
+
+	/**
+	 * Without scaling, the ge values of a small tree are integrated as they are. On a deep tree, where they fall
+	 * below the absolute tolerance, they are scaled again. Both give the likelihood of the SmallNumber scaling
+	 * @throws Exception
+	 */
+	@Test
+	public void testNoScaling() throws Exception {
+
+		Tree small = new TreeParser("((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);", false);
+
+		// ladder-shaped tree, deep enough for the ge values to fall below 2^-200
+		String newick = "1[&type=0]:0.1";
+		for (int i = 2; i <= 45; i++)
+			newick = "(" + newick + "," + i + "[&type=" + (i % 2) + "]:0.1):0.1";
+		Tree deep = new TreeParser(newick + ";", false);
+
+		double[] rescalings = new double[2];
+		Tree[] trees = new Tree[]{small, deep};
+
+		for (int i = 0; i < trees.length; i++) {
+
+			double logL = getCachingTestModel(trees[i]).calculateLogP();
+
+			BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(trees[i]);
+			bdm.setInputValue("scaling", PiecewiseBirthDeathMigrationDistribution.ScalingMode.NONE);
+			bdm.setInputValue("instrumentation", true);
+			bdm.initAndValidate();
+
+			assertEquals(logL, bdm.calculateLogP(), 1e-10);
+			rescalings[i] = getLoggedStatistics(bdm)[IntegrationStatistics.Counter.RESCALINGS.ordinal()];
+		}
+
+		assertEquals(0., rescalings[0], 0.);
+		assertTrue(rescalings[1] > 0);
+	}
+
+	/**
+	 * Scaling by the largest value gives the likelihood of the SmallNumber scaling on a tree whose likelihood is far
+	 * below the smallest double
+	 * @throws Exception
+	 */
+	@Test
+	public void testMaximumScaling() throws Exception {
+
+		// ladder-shaped tree of 300 tips, of log-likelihood about -1570
+		double length = 0.5 / 300;
+		String newick = "1[&type=0]:" + length;
+		for (int i = 2; i <= 300; i++)
+			newick = "(" + newick + "," + i + "[&type=" + (i % 2) + "]:" + length + "):" + length;
+		Tree tree = new TreeParser(newick + ";", false);
+
+		double logL = getCachingTestModel(tree).calculateLogP();
+		assertTrue(logL < Math.log(Double.MIN_VALUE));
+
+		BirthDeathMigrationModelUncoloured bdm = getCachingTestModel(tree);
+		bdm.setInputValue("scaling", PiecewiseBirthDeathMigrationDistribution.ScalingMode.MAXIMUM);
+		bdm.initAndValidate();
+
+		assertEquals(logL, bdm.calculateLogP(), 1e-10);
+	}
+
+	/**
+	 * Models with different numbers of types and intervals, evaluated concurrently, give their serial likelihoods
+	 * @throws Exception
+	 */
+	@Test
+	public void testIndependentInstances() throws Exception {
+
+		String newick = "((3[&type=1]:1.5,4[&type=0]:0.5):1,(1[&type=1]:1,2[&type=0]:1):3);";
+
+		double logL = getCachingTestModel(new TreeParser(newick, false)).calculateLogP();
+		double logLOther = getIndependentInstancesOtherModel().calculateLogP();
+
+		// two instances of each model, each evaluated by one task at a time on a pool of four threads
+		List<BirthDeathMigrationModelUncoloured> models = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			models.add(getCachingTestModel(new TreeParser(newick, false)));
+			models.add(getIndependentInstancesOtherModel());
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int round = 0; round < 50; round++) {
+				List<Future<Double>> results = new ArrayList<>();
+				for (BirthDeathMigrationModelUncoloured model : models)
+					results.add(executor.submit(model::calculateLogP));
+
+				for (int i = 0; i < results.size(); i++)
+					assertEquals((i % 2 == 0) ? logL : logLOther, results.get(i).get(), 1e-10);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	BirthDeathMigrationModelUncoloured getIndependentInstancesOtherModel() {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+		bdm.setInputValue("tree", new TreeParser("((1[&type=0]:1.5,2[&type=0]:0.5):1,3[&type=0]:2);", false));
+		bdm.setInputValue("typeLabel", "type");
+		bdm.setInputValue("origin", "6.");
+		bdm.setInputValue("stateNumber", "1");
+		bdm.setInputValue("migrationMatrix", "0.");
+		bdm.setInputValue("frequencies", "1");
+		bdm.setInputValue("R0", new RealParameter("1.5"));
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("1.5"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.3"));
+		bdm.setInputValue("rho", new RealParameter("0.1"));
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+
+	/**
+	 * @return ladder-shaped tree of 100 tips sampled at two times, the branches of most tips cross the change time
+	 * of the model of getCachingTestModel, at height 4
+	 */
+	Tree getLadderTestTree() {
+
+		String newick = "1[&type=1]";
+		double previousHeight = 0.;
+		for (int i = 2; i <= 100; i++) {
+			double tipHeight = (i % 4 < 2) ? 0. : 0.5;
+			double height = 0.5 + 0.042 * i;
+			newick = "(" + newick + ":" + (height - previousHeight) + "," + i + "[&type=" + (i % 2) + "]:" + (height - tipHeight) + ")";
+			previousHeight = height;
+		}
+
+		return new TreeParser(newick + ";", false);
+	}
+
+	/**
+	 * @param taxa
+	 * @return the uncoloured tree with 291 tips of testLikelihoodCalculationMig
+	 */
+	Tree getBigTestTree(List<Taxon> taxa) {
+
+		String treeBig = "(((((((t1:0.9803361397,t2:0.9035540882):0.0532383481,t3:0.2637392259):0.6273536528,(t4:0.8624112266,t5:0.3278892266):0.2606245542):0.2941323873,(t6:0.09820114588,t7:0.533115675):0.8625875909):0.7040311908,(((t8:0.8696136218,t9:0.08719484485):0.4204288905,(t10:0.102143287,(t11:0.9850614571,t12:0.7407912319):0.8715072596):0.5182644848):0.524062254,(((((((t13:0.3981794417,(t14:0.03889928572,t15:0.5187105467):0.1127638209):0.3431177251,((t16:0.4239511855,t17:0.001895790454):0.690600364,t18:0.6283850113):0.4073564562):0.6862231812,(((t19:0.9947085041,t20:0.4739363373):0.1873670686,t21:0.151270482):0.803061039,((t22:0.8899249982,((t23:0.1329096023,t24:0.84205155):0.8838408566,(t25:0.7541888549,t26:0.8602364615):0.8912267659):0.771449636):0.1022819551,(((t27:0.3134289116,(t28:0.2446750235,t29:0.8565168788):0.8277210968):0.4307989818,((t30:0.2330717787,t31:0.4438336496):0.6521712865,(t32:0.2534400895,t33:0.7885409284):0.3051449039):0.1196702593):0.4061951274,t34:0.8415271267):0.4365981282):0.753448925):0.1580670979):0.04210642632,(((t35:0.7504386581,t36:0.6328390085):0.9047614154,t37:0.4946133171):0.2264722914,((((t38:0.06683212146,t39:0.479845396):0.9424520086,t40:0.894530142):0.3844042511,(((t41:0.5215392481,t42:0.2366602973):0.8142298241,(t43:0.2968777204,(t44:0.655541793,t45:0.8608812049):0.3564132168):0.04912991729):0.1511388237,t46:0.9031036345):0.1874918914):0.9690212663,(t47:0.07753491728,(t48:0.8349514075,(t49:0.9689748741,t50:0.925813166):0.4534903264):0.3571097804):0.1324767114):0.5515443345):0.3330309158):0.7202291801,((t51:0.6977306763,((t52:0.9157640305,t53:0.4226291834):0.5872618856,t54:0.2063144948):0.1422286083):0.7182746637,t55:0.759545143):0.7437628019):0.2425582204,((t56:0.4614429038,(t57:0.9092229386,((t58:0.1049408391,t59:0.6328130178):0.642241966,((t60:0.264340204,t61:0.5904771155):0.7333205172,(t62:0.9183179205,t63:0.1090340314):0.3010568973):0.3240860389):0.3192155454):0.1835780439):0.5942421539,t64:0.7931551472):0.967891278):0.06263663713,(t65:0.5774453548,((t66:0.07208712469,((t67:0.8918803469,t68:0.5110983853):0.1491188321,t69:0.2471361952):0.9591872343):0.3133718621,(t70:0.944087367,t71:0.7830825299):0.2284035049):0.5492361034):0.1136150162):0.002181729767):0.4548798562):0.4258609388,((((((t72:0.27679418,t73:0.5398862793):0.8871422287,(((((t74:0.2531923286,t75:0.3796772889):0.4489221217,t76:0.2554209188):0.3248268673,t77:0.5372577759):0.5699883625,t78:0.1656995732):0.957750936,(t79:0.1301121258,t80:0.8925942327):0.2838441601):0.5258686764):0.47825964,(t81:0.5749240227,((t82:0.9574132746,(t83:0.00485483068,t84:0.8091488208):0.1985368489):0.3703975577,(((t85:0.3991035291,(t86:0.03201846033,t87:0.8380640063):0.05616304209):0.8414494572,t88:0.6844437125):0.2426782607,((t89:0.7543559887,t90:0.7162597755):0.8230077426,t91:0.08967904118):0.4460245941):0.8679371702):0.51572948):0.4362259945):0.2631344711,(((t92:0.3353162925,((t93:0.4025212794,t94:0.0281926766):0.7965471447,t95:0.1145715592):0.5993301494):0.08854756854,(t96:0.1461353719,((t97:0.3158547124,t98:0.06653800653):0.5634025722,t99:0.9711292514):0.9727503664):0.7684133062):0.4824229684,((t100:0.06834940333,t101:0.7794982188):0.3453287922,(t102:0.627945075,t103:0.1914187325):0.9974814849):0.6312927424):0.04858242651):0.2845227425,((t104:0.6782600286,(t105:0.03190574702,t106:0.5840284519):0.03041352634):0.725893975,(((t107:0.9885271091,t108:0.07126446022):0.8419693699,t109:0.1546431775):0.898004594,t110:0.2500803664):0.1493327522):0.4266726137):0.5946582041,(t111:0.1395377244,(((t112:0.7170655408,(t113:0.976886861,t114:0.9406369971):0.7471234254):0.8065501407,((t115:0.1713845057,(t116:0.7861330248,t117:0.6082276558):0.8413775554):0.3245444677,t118:0.3892389825):0.5992471091):0.7592411407,(((t119:0.535931844,t120:0.09058958571):0.4227561057,(t121:0.5531579193,t122:0.8276180199):0.6653355309):0.0941624688,t123:0.3623022255):0.1494971744):0.3526274569):0.9720881658):0.8149677955):0.6065687414,((((((t124:0.5406888947,t125:0.8892341822):0.06211395678,((t126:0.8203180477,(t127:0.8536844573,t128:0.360511546):0.9030223228):0.9095590916,((t129:0.9110714826,(t130:0.2346256471,t131:0.6523390864):0.1288849309):0.7077432328,(t132:0.4060195235,t133:0.1661393729):0.3910941551):0.205704404):0.8609933471):0.3724007562,((t134:0.1731842053,(t135:0.7232482471,(t136:0.3883952193,((t137:0.6709475764,t138:0.0372075201):0.5473196667,(t139:0.8092764446,t140:0.4123262055):0.2000603897):0.55258787):0.2654263263):0.745555162):0.2956101163,((t141:0.52147611,(t142:0.9462005703,t143:0.5671354234):0.6887917654):0.362258781,t144:0.4798202242):0.8242726682):0.6072624433):0.695287361,((((t145:0.03793937969,t146:0.07275558705):0.3482963489,t147:0.1457363514):0.1479936559,(t148:0.7158309214,((t149:0.2174433649,t150:0.04072828358):0.4112026501,t151:0.6422409331):0.3413406226):0.1693999742):0.6631712937,(((t152:0.2706006162,t153:0.9267972289):0.1387761638,((((t154:0.2563392594,t155:0.3058371837):0.5946117372,t156:0.6161190302):0.6970871226,(t157:0.2388902532,(t158:0.9486316761,t159:0.215360787):0.168830334):0.03888285463):0.1640696453,t160:0.6803096831):0.1418975852):0.4218000816,(((t161:0.8702562298,t162:0.9289729816):0.05807372741,t163:0.3533785399):0.5012762842,(((t164:0.8666574673,t165:0.9603798252):0.7887994377,t166:0.857058729):0.4139410679,(t167:0.5900272813,t168:0.3345388798):0.06017537019):0.9609203783):0.7103463742):0.696603697):0.6451920038):0.1909481271,((((t169:0.9171597108,t170:0.9479122513):0.7170342554,(t171:0.2722596873,((t172:0.1194724559,(t173:0.03922236571,t174:0.6290624789):0.07739861775):0.8598598302,(t175:0.2009421999,(t176:0.06154947914,t177:8.997193072E-4):0.04738179315):0.3235510678):0.3443877005):0.6351028818):0.5525081949,((((t178:0.7599076207,t179:0.2997759853):0.5921433992,t180:0.7098581635):0.3725496214,(t181:0.5053773888,(t182:0.5991492711,(t183:0.5036820578,t184:0.6361607853):0.510631816):0.9604382808):0.2464167587):0.6073093358,(((t185:0.03128415369,(t186:0.5260852403,(t187:0.878767435,t188:0.4992109234):0.5333148066):0.00347468094):0.5590308013,t189:0.3710992143):0.5034162949,(t190:0.778916508,((t191:0.3069154553,(((t192:0.9946115273,t193:0.9138687006):0.5209144899,t194:0.5152770842):0.9462409306,t195:0.7395236609):0.4110851623):0.930918345,(((t196:0.7895439987,((t197:0.4697002599,t198:0.1383787312):0.6911794308,(t199:0.8664436699,t200:0.1959039853):0.8656513852):0.3620497067):0.2839249384,(t201:0.6558795469,t202:0.2103423763):0.969477433):0.9058840063,(t203:0.0856692954,t204:0.4175976661):0.820434629):0.5355881769):0.2263581599):0.4512835185):0.7323478526):0.2479199937):0.1964542414,((t205:0.7537573762,(t206:0.1392466244,(t207:0.5136175761,(t208:0.7852529553,t209:0.07355738804):0.1220811389):0.7572090242):0.1422528555):0.5948274662,(((((t210:0.3068353184,(t211:0.3314456891,((t212:0.5265486804,t213:0.1382007354):0.1814086549,t214:0.9276472756):0.07718444197):0.03486835537):0.1617580003,(t215:0.3328830956,t216:0.8558843595):0.8366736979):0.347376487,t217:0.8222538356):0.2337225529,(t218:0.06199815008,t219:0.45975962):0.179990889):0.0635867205,(t220:0.3214025751,(t221:0.5022090652,t222:0.6454557138):0.6956466341):0.2711792416):0.1847200533):0.1051658324):0.4945860899):0.936143348,(((t223:0.06268779701,((t224:0.3337278806,t225:0.1570303424):0.3089733059,(t226:0.5069784883,t227:0.1434204187):0.2001587199):0.04750720505):0.3600859912,((((t228:0.9994731578,(t229:0.8934116936,t230:0.03698333143):0.8173468311):0.3089058488,((((t231:0.3216121283,t232:0.5232846253):0.8687884973,(t233:0.6280638413,((t234:0.6543256822,t235:0.8677638234):0.8895299246,t236:0.4047793006):0.7147388768):0.3533478715):0.9470084386,t237:0.7769409856):0.4955915695,((t238:0.2772087415,(t239:0.4904922615,(t240:0.05356206303,t241:0.08998329984):0.8154862223):0.5610961432):0.1617916438,(t242:0.5707751412,(t243:0.9836868793,t244:0.1984052949):0.6953297216):0.05552111682):0.9476150468):0.2473166997):0.9623488116,((t245:0.7935025664,t246:0.08509867964):0.3953444003,(t247:0.09163277131,(t248:0.5201428954,t249:0.8055520628):0.7452739514):0.3989078877):0.07581191277):0.9779064963,(((t250:0.943611098,(t251:0.33392801,t252:0.5996331484):0.4291575127):0.4906436009,((((t253:0.7749450852,(t254:0.8616885878,t255:0.585028409):0.06060880423):0.1238881133,((t256:0.7451687793,t257:0.6925335305):0.05338745634,t258:0.3357626374):0.2069296469):0.09644073155,((((t259:0.2258843291,t260:0.2671526412):0.3940743534,(t261:0.5022506947,(t262:0.9498897423,t263:0.1406114365):0.2847759123):0.04320593993):0.6982026948,t264:0.2693712024):0.959781138,(((t265:0.6035173486,t266:0.5529949202):0.9900399651,(t267:0.5455351078,t268:0.3530619899):0.4626278321):0.2735997427,(t269:0.9580646451,(t270:0.3280033092,t271:0.7206294278):0.03739526332):0.4967516926):0.9350089293):0.4371789068):0.1014483059,t272:0.2867298371):0.07522285799):0.06352435821,((t273:0.4001782183,t274:0.7190070178):0.1696753846,(t275:0.5535608665,t276:0.01324651297):0.2691543309):0.8676247413):0.8461736294):0.1769516913):0.344365149,(((t277:0.3245107541,(t278:0.4142541443,t279:0.5857141651):0.819547887):0.0867733527,(t280:0.4938162852,(t281:0.2444119717,t282:0.08141433029):0.05381231918):0.8375963389):0.176160393,((t283:0.4199601968,t284:0.8354801824):0.3150380594,(((t285:0.9818797186,(t286:0.8971825438,((t287:0.5155417006,t288:0.8260786769):0.7060374152,t289:0.6001661876):0.4120474763):0.9949228324):0.8038698458,t290:0.1939124272):0.6380942846,t291:0.3665255161):0.459349304):0.482901911):0.4833473735):0.5903116504):0.9973697898)";;
+
+		Tree tree = new TreeParser();
+		tree.setInputValue("taxonset", new TaxonSet(taxa));
+		tree.setInputValue("adjustTipHeights", "false");
+		tree.setInputValue("IsLabelledNewick", "true");
+		tree.setInputValue("newick", treeBig);
+		tree.initAndValidate();
+
+		return tree;
+	}
+
+	/**
+	 * @return the model of the uncoloured tree with 291 tips of testLikelihoodCalculationMig, of log-likelihood -661.9588648301033
+	 */
+	BirthDeathMigrationModelUncoloured getBigTreeTestModel() throws Exception {
+
+		ArrayList<Taxon> taxa = new ArrayList<Taxon>();
+		String locations = "";
+		for (int i = 1; i <= 291; i++) {
+			taxa.add(new Taxon("t" + i));
+			locations = locations + "t" + i + "=0" + (i < 291 ? "," : "");
+		}
+
+		Tree tree = getBigTestTree(taxa);
+
+		TraitSet trait = new TraitSet();
+		trait.setInputValue("taxa", new TaxonSet(taxa));
+		trait.setInputValue("value", locations);
+		trait.setInputValue("traitname", "tiptypes");
+		trait.initAndValidate();
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", tree);
+		bdm.setInputValue("tiptypes", trait);
+		bdm.setInputValue("origin", Double.toString(0.1 + tree.getRoot().getHeight()));
+		bdm.setInputValue("stateNumber", "2");
+		bdm.setInputValue("migrationMatrix", "0.2 0.1");
+		bdm.setInputValue("frequencies", "0.5 0.5");
+		bdm.setInputValue("checkRho", false);
+		bdm.setInputValue("R0", Double.toString(4./3.) + " " + Double.toString(5.));
+		bdm.setInputValue("becomeUninfectiousRate", "1.5 1.25");
+		bdm.setInputValue("samplingProportion", Double.toString(1./3.) + " " + Double.toString(1./2.));
+		bdm.setInputValue("conditionOnSurvival", true);
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+
+	BirthDeathMigrationModelUncoloured getCachingTestModel(Tree tree) {
+
+		BirthDeathMigrationModelUncoloured bdm =  new BirthDeathMigrationModelUncoloured();
+
+		bdm.setInputValue("tree", tree);
+		bdm.setInputValue("typeLabel", "type");
+		bdm.setInputValue("origin", "5.");
+		bdm.setInputValue("stateNumber", "2");
+		bdm.setInputValue("migrationMatrix", "0.1 0.2 0.15 0.25");
+		bdm.setInputValue("frequencies", "0.5 0.5");
+		bdm.setInputValue("checkRho", false);
+		bdm.setInputValue("R0", new RealParameter("6 2 5 2.5"));
+		bdm.setInputValue("becomeUninfectiousRate", new RealParameter("0.5 0.45 0.55 0.6"));
+		bdm.setInputValue("samplingProportion", new RealParameter("0.5 0.333333 0.45 0.35"));
+		bdm.setInputValue("intervalTimes", new RealParameter("0. 1."));
+		bdm.setInputValue("conditionOnSurvival", false);
+
+		bdm.initAndValidate();
+
+		return bdm;
+	}
+
+	BirthDeathMigrationClusterModelUncoloured getClusterTestModel(Tree tree, Uniform distribution, RealParameter quantiles,
+																  String clusterNumbers, int currentCluster) {
+
+		BirthDeathMigrationClusterModelUncoloured cluster = new BirthDeathMigrationClusterModelUncoloured();
+
+		cluster.setInputValue("tree", tree);
+		cluster.setInputValue("typeLabel", "type");
+		cluster.setInputValue("origin", "5.");
+		cluster.setInputValue("stateNumber", "2");
+		cluster.setInputValue("migrationMatrix", "0.1 0.2 0.15 0.25");
+		cluster.setInputValue("frequencies", "0.5 0.5");
+		cluster.setInputValue("checkRho", false);
+		cluster.setInputValue("R0", new RealParameter("6 2 5 2.5"));
+		cluster.setInputValue("becomeUninfectiousRate", new RealParameter("0.5 0.45 0.55 0.6"));
+		cluster.setInputValue("samplingProportion", new RealParameter("0.5 0.333333 0.45 0.35"));
+		cluster.setInputValue("intervalTimes", new RealParameter("0. 1."));
+		cluster.setInputValue("conditionOnSurvival", false);
+
+		cluster.setInputValue("distr", distribution);
+		cluster.setInputValue("clusterNumbers", new IntegerParameter(clusterNumbers));
+		cluster.setInputValue("currentCluster", currentCluster);
+		cluster.setInputValue("rateQuantiles", quantiles);
+		cluster.initAndValidate();
+
+		return cluster;
+	}
+
 	public double bdm_likelihood(String statenumber, String migrationMatrix,
 			String frequencies, Tree tree, String typeLabel, String origin,
 			String R0, String R0AmongDemes, String becomeUninfectiousRate, String samplingProportion, String removalProbability,